@@ -0,0 +1,134 @@
+package formats;
+
+/**
+ * Chen, Paris and Durand's bilateral grid, an approximation of the bilateral filter: samples are
+ * summed into cells sigmaS pixels wide and sigmaR deep in intensity, the grid is blurred by a
+ * Gaussian one cell wide, and each pixel reads its value back interpolating the grid where it
+ * falls. The cost depends on the size of the image and of the grid, not on sigmaS.
+ * <p>
+ * The intensity of a pixel is the mean of its bands. Windows are cut by the borders.
+ */
+final class BilateralGrid {
+
+    /**
+     * Cells around the samples, enough for the blur not to lose any weight
+     */
+    private static final int PAD = 2;
+
+    private BilateralGrid(){
+    }
+
+    /**
+     * Splats the image into the grid, filters it and slices it into ans. The image is read tile by
+     * tile, so on tiled images the memory taken is the grid's.
+     * @param sigmaS spatial deviation, in pixels
+     * @param sigmaR range deviation of the distances the exact filter weights, the root of the sum
+     *               of the squared differences of the bands
+     */
+    static void filter(Image image, double sigmaS, double sigmaR, Image ans){
+        int width = image.getWidth(), height = image.getHeight(), bands = image.getEncoding().getBands();
+        Parallelism parallelism = image.getParallelism();
+        double[] range = image.reduce(() -> new double[]{Double.MAX_VALUE, -Double.MAX_VALUE}, (partial, x, y) -> {
+            double value = intensity(image, x, y, bands);
+            partial[0] = Math.min(partial[0], value);
+            partial[1] = Math.max(partial[1], value);
+        }, (a, b) -> new double[]{Math.min(a[0], b[0]), Math.max(a[1], b[1])});
+        // Bands differing as much as their mean does are that much further apart
+        double depth = sigmaR/Math.sqrt(bands), lowest = range[0];
+        int gx = (int) ((width - 1)/sigmaS + 0.5) + 1 + 2*PAD;
+        int gy = (int) ((height - 1)/sigmaS + 0.5) + 1 + 2*PAD;
+        int gz = (int) ((range[1] - range[0])/depth + 0.5) + 1 + 2*PAD;
+
+        // The sums of each band, then the weights
+        double[][] grid = new double[bands + 1][gx*gy*gz];
+        Image.TileVisitor splat = (x0, y0, x1, y1) -> {
+            for(int y = y0; y < y1; y++){
+                int cy = (int) Math.round(y/sigmaS) + PAD;
+                for(int x = x0; x < x1; x++){
+                    int cz = (int) Math.round((intensity(image, x, y, bands) - lowest)/depth) + PAD;
+                    int cell = ((int) Math.round(x/sigmaS) + PAD) + (cy + cz*gy)*gx;
+                    for(int c = 0; c < bands; c++)
+                        grid[c][cell] += image.d(x, y, c);
+                    grid[bands][cell]++;
+                }
+            }
+        };
+        // Tiled images visit their tiles one at a time, stripes of cells can't share one
+        if(image.isTiled())
+            image.forEachTile(splat);
+        else
+            parallelism.forEachStripe(gx, gy, (cy0, cy1) -> {
+                for(int y = 0; y < height; y++){
+                    int cy = (int) Math.round(y/sigmaS) + PAD;
+                    if(cy >= cy0 && cy < cy1)
+                        splat.visit(0, y, width, y + 1);
+                }
+            });
+
+        blur(grid, gx, gy*gz, 1, parallelism);
+        blur(grid, gy, gx*gz, gx, parallelism);
+        blur(grid, gz, gx*gy, gx*gy, parallelism);
+
+        image.forEachTile((x0, y0, x1, y1) -> {
+            double[] values = new double[bands + 1];
+            for(int y = y0; y < y1; y++){
+                double fy = y/sigmaS + PAD;
+                int cy = (int) fy;
+                double ty = fy - cy;
+                for(int x = x0; x < x1; x++){
+                    double fx = x/sigmaS + PAD, fz = (intensity(image, x, y, bands) - lowest)/depth + PAD;
+                    int cx = (int) fx, cz = (int) fz;
+                    double tx = fx - cx, tz = fz - cz;
+                    int cell = cx + (cy + cz*gy)*gx;
+                    for(int c = 0; c <= bands; c++){
+                        double[] g = grid[c];
+                        double near = lerp(g, cell, gx, tx, ty), far = lerp(g, cell + gx*gy, gx, tx, ty);
+                        values[c] = near + (far - near)*tz;
+                    }
+                    for(int c = 0; c < bands; c++)
+                        ans.setComponent(x, y, c, values[c]/values[bands]);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the mean of the bands of pixel (x, y)
+     */
+    private static double intensity(Image image, int x, int y, int bands){
+        double sum = 0;
+        for(int c = 0; c < bands; c++)
+            sum += image.d(x, y, c);
+        return sum/bands;
+    }
+
+    /**
+     * @return the bilinear interpolation of the 2x2 cells of a layer from cell on
+     */
+    private static double lerp(double[] g, int cell, int gx, double tx, double ty){
+        double top = g[cell] + (g[cell + 1] - g[cell])*tx;
+        double bottom = g[cell + gx] + (g[cell + gx + 1] - g[cell + gx])*tx;
+        return top + (bottom - top)*ty;
+    }
+
+    /**
+     * Convolves every line of the grid along one axis with the binomial 1 4 6 4 1, a Gaussian one
+     * cell wide. Scaling is left out since the sums and the weights share it.
+     * @param length cells of a line, step apart
+     */
+    private static void blur(double[][] grid, int length, int lines, int step, Parallelism parallelism){
+        parallelism.forEachStripe(length, lines, (l0, l1) -> {
+            double[] line = new double[length + 4];
+            for(double[] g : grid){
+                for(int l = l0; l < l1; l++){
+                    // The first cell of the line
+                    int from = l % step + (l / step)*step*length;
+                    for(int k = 0; k < length; k++)
+                        line[k + 2] = g[from + k*step];
+                    for(int k = 0; k < length; k++)
+                        g[from + k*step] = line[k] + 4*line[k + 1] + 6*line[k + 2] + 4*line[k + 3] + line[k + 4];
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,45 @@
+package formats;
+
+/**
+ * What neighbourhood operations read past the borders of an image.
+ */
+public enum BorderMode {
+
+    /**
+     * The opposite border, as if the image tiled the plane
+     */
+    WRAP,
+    /**
+     * The nearest border pixel
+     */
+    CLAMP,
+    /**
+     * The mirror image about the border pixel, which isn't repeated
+     */
+    REFLECT,
+    /**
+     * Zero samples
+     */
+    ZERO;
+
+    /**
+     * @return the coordinate in [0, length) read for coordinate i, or -1 if it reads zero
+     */
+    public int index(int i, int length){
+        if(i >= 0 && i < length)
+            return i;
+        switch (this){
+            case WRAP:
+                return Math.floorMod(i, length);
+            case CLAMP:
+                return i < 0 ? 0 : length - 1;
+            case REFLECT:
+                if(length == 1)
+                    return 0;
+                int period = 2*(length - 1), m = Math.floorMod(i, period);
+                return m < length ? m : period - m;
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package formats;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.DoubleAccumulator;
+
+/**
+ * Anisotropic diffusion of the bands of an image, iterated between two buffers of doubles holding a
+ * ring of one column on each side, or between two images of doubles if the image is tiled, so memory
+ * stays bounded by their tile caches. Each iteration reads one and writes the other, stripes of rows
+ * in parallel on buffers, tile by tile on images, reading past the borders as the border mode says.
+ */
+final class Diffusion {
+
+    /**
+     * Iterations per sweep and rows per stripe of the sweeps of {@link #iterate(int)} on tiled images,
+     * where each sweep reads and writes every tile once instead of once per iteration. Deeper sweeps
+     * diffuse more rows twice for little more reuse.
+     */
+    static final int SWEEP_STEPS = 4, SWEEP_ROWS = 128;
+
+    private final int width, height, stride, bands;
+    private final double sigma;
+    private final Image.DiffusionBorderDetector detector;
+    private final BorderMode border;
+    /**
+     * Columns and rows of the samples the ring copies, -1 for zeros
+     */
+    private final int[] columns, rows;
+    /**
+     * The image diffused, read by the first iteration only if tiled
+     */
+    private final Image source;
+    /**
+     * The buffers, rows of stride samples per band, ring included, if the image isn't tiled
+     */
+    private double[][] current, next;
+    /**
+     * The images of doubles, if the image is tiled
+     */
+    private Image currentImage, nextImage;
+
+    Diffusion(Image image, double sigma, Image.DiffusionBorderDetector detector, BorderMode border){
+        width = image.getWidth();
+        height = image.getHeight();
+        stride = width + 2;
+        bands = image.getEncoding().getBands();
+        this.sigma = sigma;
+        this.detector = detector;
+        this.border = border;
+        source = image;
+        columns = new int[]{border.index(-1, width), border.index(width, width)};
+        rows = new int[]{border.index(-1, height), border.index(height, height)};
+        if(image.isTiled()){
+            currentImage = image;
+            nextImage = image.blank(image.getEncoding(), SampleType.DOUBLE);
+            return;
+        }
+        current = new double[bands][stride*height];
+        next = new double[bands][stride*height];
+        image.forEachTile((x0, y0, x1, y1) -> {
+            for(int c = 0; c < bands; c++)
+                for(int y = y0; y < y1; y++){
+                    for(int x = x0; x < x1; x++)
+                        current[c][x + 1 + y*stride] = image.d(x, y, c);
+                    fillColumns(current[c], y*stride);
+                }
+        });
+    }
+
+    /**
+     * Runs an iteration.
+     * @param change whether to measure the change
+     * @return the largest change of a sample, 0 if not measured
+     */
+    double iterate(boolean change){
+        if(current == null)
+            return iterate(1, SWEEP_ROWS, change);
+        double[][] from = current, to = next;
+        double[] zeros = new double[stride];
+        DoubleAccumulator largest = new DoubleAccumulator(Math::max, 0);
+        source.getParallelism().forEachStripe(width, height, (y0, y1) -> {
+            double max = 0;
+            for(int c = 0; c < bands; c++)
+                for(int y = y0; y < y1; y++){
+                    int above = border.index(y - 1, height), below = border.index(y + 1, height);
+                    double delta = stencil(above < 0 ? zeros : from[c], Math.max(above, 0)*stride,
+                            from[c], y*stride, below < 0 ? zeros : from[c], Math.max(below, 0)*stride,
+                            to[c], y*stride, 1, width + 1, change);
+                    fillColumns(to[c], y*stride);
+                    if(delta > max)
+                        max = delta;
+                }
+            largest.accumulate(max);
+        });
+        current = to;
+        next = from;
+        return largest.get();
+    }
+
+    /**
+     * Runs steps iterations, in sweeps on tiled images and one at a time on buffers, whose rows stay
+     * in cache from one iteration to the next anyway
+     */
+    void iterate(int steps){
+        if(current != null){
+            for(int k = 0; k < steps; k++)
+                iterate(false);
+            return;
+        }
+        for(int k = 0; k < steps; k += SWEEP_STEPS)
+            iterate(Math.min(SWEEP_STEPS, steps - k), SWEEP_ROWS, false);
+    }
+
+    /**
+     * Runs several iterations in one sweep down each tile, a wavefront: as soon as an iteration has
+     * diffused a row, the next one diffuses the row above it. Iterations but the last keep their
+     * latest three rows, so each row of the image is read and written once per sweep. The samples are
+     * the same as after as many single iterations.
+     * <p>
+     * Each tile starts as many rows and columns before its first as iterations, and every iteration
+     * diffuses one less on each side, the farthest ones having read stale neighbours. Past the
+     * borders, wrapped samples are diffused like the ones they wrap, which they equal, and other modes
+     * read the ring from the samples it copies.
+     * @param stripeRows rows of a stripe, about, on images not tiled
+     * @param change whether to measure the change of the last iteration
+     * @return the largest change of a sample, 0 if not measured
+     */
+    double iterate(int steps, int stripeRows, boolean change){
+        Image from = currentImage, to = nextImage;
+        double[][] fromSamples = current, toSamples = next;
+        boolean wrap = border == BorderMode.WRAP;
+        DoubleAccumulator largest = new DoubleAccumulator(Math::max, 0);
+        source.forEachTile(stripeRows, (x0, y0, x1, y1) -> {
+            // Rows of the tile and its halo start at column x0 - steps - 1
+            int origin = x0 - steps - 1, length = x1 - x0 + 2*steps + 2;
+            int[] sources = new int[length];
+            for(int m = 0; m < length; m++)
+                sources[m] = border.index(origin + m, width);
+            // Rows of each iteration but the last, the input first, row r in slot r mod 3
+            double[][][] slots = new double[steps][3][length];
+            double[] zeros = new double[length], out = new double[length];
+            int[] first = new int[steps + 1], last = new int[steps + 1], left = new int[steps + 1], right = new int[steps + 1];
+            int end = 0;
+            for(int k = 1; k <= steps; k++){
+                first[k] = wrap ? y0 - (steps - k) : Math.max(0, y0 - (steps - k));
+                last[k] = wrap ? y1 + (steps - k) : Math.min(height, y1 + (steps - k));
+                left[k] = (wrap ? x0 - (steps - k) : Math.max(0, x0 - (steps - k))) - origin;
+                right[k] = (wrap ? x1 + (steps - k) : Math.min(width, x1 + (steps - k))) - origin;
+                end = Math.max(end, last[k] + k - 1);
+            }
+            double max = 0;
+            for(int c = 0; c < bands; c++){
+                double[] band = fromSamples == null ? null : fromSamples[c];
+                load(from, band, c, first[1] - 1, origin, sources, slots[0]);
+                load(from, band, c, first[1], origin, sources, slots[0]);
+                for(int t = first[1]; t < end; t++){
+                    if(t + 1 <= last[1])
+                        load(from, band, c, t + 1, origin, sources, slots[0]);
+                    for(int k = 1; k <= steps; k++){
+                        int r = t - (k - 1);
+                        if(r < first[k] || r >= last[k])
+                            continue;
+                        double[] target = k == steps ? out : slots[k][Math.floorMod(r, 3)];
+                        double delta = stencil(slot(slots, zeros, k - 1, r - 1), 0, slots[k - 1][Math.floorMod(r, 3)], 0,
+                                slot(slots, zeros, k - 1, r + 1), 0, target, 0, left[k], right[k], change && k == steps);
+                        if(delta > max)
+                            max = delta;
+                        if(k < steps)
+                            fillColumns(target, origin, left[k], right[k]);
+                        else if(toSamples != null){
+                            // Stripes of buffers span whole rows
+                            System.arraycopy(out, -origin, toSamples[c], 1 + r*stride, width);
+                            fillColumns(toSamples[c], r*stride);
+                        } else
+                            for(int x = x0; x < x1; x++)
+                                to.set(x, r, c, out[x - origin]);
+                    }
+                }
+            }
+            largest.accumulate(max);
+        });
+        if(from == null){
+            current = toSamples;
+            next = fromSamples;
+        } else {
+            currentImage = to;
+            nextImage = from == source ? from.blank(from.getEncoding(), SampleType.DOUBLE) : from;
+        }
+        return largest.get();
+    }
+
+    /**
+     * Copies the row r of band c, from the buffer band if not null else from image, past its borders
+     * as the border mode says, to its slot
+     */
+    private void load(Image image, double[] band, int c, int r, int origin, int[] sources, double[][] slots){
+        int y = border.index(r, height);
+        double[] slot = slots[Math.floorMod(r, 3)];
+        if(y < 0){
+            Arrays.fill(slot, 0);
+            return;
+        }
+        if(band == null){
+            for(int m = 0; m < sources.length; m++)
+                slot[m] = sources[m] < 0 ? 0 : image.d(sources[m], y, c);
+            return;
+        }
+        // The columns of the row and its ring are contiguous in the buffer
+        int from = Math.max(0, -1 - origin), to = Math.min(sources.length, width + 1 - origin);
+        System.arraycopy(band, origin + from + 1 + y*stride, slot, from, to - from);
+        for(int m = 0; m < sources.length; m++)
+            if(m < from || m >= to)
+                slot[m] = sources[m] < 0 ? 0 : band[sources[m] + 1 + y*stride];
+    }
+
+    /**
+     * @return the row r of the iteration k of a sweep, the ring being the rows it copies
+     */
+    private double[] slot(double[][][] slots, double[] zeros, int k, int r){
+        if(k > 0 && border != BorderMode.WRAP && (r < 0 || r >= height)){
+            r = rows[r < 0 ? 0 : 1];
+            if(r < 0)
+                return zeros;
+        }
+        return slots[k][Math.floorMod(r, 3)];
+    }
+
+    /**
+     * Diffuses the samples [from, to) of a row given the rows above and below it, each given by the
+     * array holding it and where it starts
+     * @return the largest change of a sample if measured, else 0
+     */
+    private double stencil(double[] above, int a, double[] centre, int m, double[] below, int b, double[] target,
+                           int t, int from, int to, boolean change){
+        double max = 0;
+        for(int i = from; i < to; i++){
+            double v = centre[m + i];
+
+            double vn = centre[m + i + 1] - v;
+            double vs = centre[m + i - 1] - v;
+            double ve = above[a + i] - v;
+            double vw = below[b + i] - v;
+
+            vn *= detector.conductance(sigma, vn);
+            vs *= detector.conductance(sigma, vs);
+            ve *= detector.conductance(sigma, ve);
+            vw *= detector.conductance(sigma, vw);
+
+            double delta = 0.25*(vn + vs + ve + vw);
+            target[t + i] = v + delta;
+            if(change && Math.abs(delta) > max)
+                max = Math.abs(delta);
+        }
+        return max;
+    }
+
+    /**
+     * Fills the ring around the row of a buffer starting at row
+     */
+    private void fillColumns(double[] band, int row){
+        band[row] = columns[0] < 0 ? 0 : band[row + 1 + columns[0]];
+        band[row + 1 + width] = columns[1] < 0 ? 0 : band[row + 1 + columns[1]];
+    }
+
+    /**
+     * Fills the ring of a row of a sweep diffused over [from, to) where it reaches the borders
+     */
+    private void fillColumns(double[] row, int origin, int from, int to){
+        if(border == BorderMode.WRAP)
+            return;
+        if(from == -origin)
+            row[from - 1] = columns[0] < 0 ? 0 : row[columns[0] - origin];
+        if(to == width - origin)
+            row[to] = columns[1] < 0 ? 0 : row[columns[1] - origin];
+    }
+
+    /**
+     * @return the sample (x, y) of band c
+     */
+    double get(int x, int y, int c){
+        return current != null ? current[c][x + 1 + y*stride] : currentImage.d(x, y, c);
+    }
+
+    /**
+     * Gives back the images diffused between if tiled, the result included. The diffusion must not be
+     * used afterwards.
+     */
+    void recycle(){
+        if(current != null)
+            return;
+        if(currentImage != source)
+            currentImage.recycle();
+        nextImage.recycle();
+    }
+}
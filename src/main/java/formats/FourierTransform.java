@@ -0,0 +1,248 @@
+package formats;
+
+import lombok.Getter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Discrete Fourier transform of a real raster of any dimensions. Only the columns [0, width/2] of
+ * the spectrum are kept, the rest being their conjugates.
+ * <p>
+ * Lengths which are powers of two run a radix 2 FFT, other lengths Bluestein's algorithm on top of
+ * it. Rows are transformed two at a time, as the real and imaginary parts of one complex row.
+ */
+public final class FourierTransform {
+
+    @Getter
+    private final int width, height;
+    private final int columns;
+    /**
+     * Spectrum at (u + v*columns)
+     */
+    private final double[] re, im;
+
+    private FourierTransform(int width, int height){
+        this.width = width;
+        this.height = height;
+        columns = width/2 + 1;
+        re = new double[columns*height];
+        im = new double[columns*height];
+    }
+
+    /**
+     * @param samples the raster, the sample (x, y) at (x + y*width)
+     * @param parallelism runs the rows and the columns of the transform
+     */
+    public static FourierTransform of(double[] samples, int width, int height, Parallelism parallelism){
+        if(samples.length != width*height)
+            throw new IllegalArgumentException();
+        FourierTransform ans = new FourierTransform(width, height);
+        Plan rows = Plan.of(width), columns = Plan.of(ans.height);
+        int pairs = (height + 1)/2;
+        parallelism.forEachStripe(width, pairs, (p0, p1) -> {
+            double[] re = new double[width], im = new double[width];
+            for(int p = p0; p < p1; p++){
+                int y = 2*p;
+                boolean two = y + 1 < height;
+                for(int x = 0; x < width; x++){
+                    re[x] = samples[x + y*width];
+                    im[x] = two ? samples[x + (y + 1)*width] : 0;
+                }
+                rows.transform(re, im, false);
+                // Splits the spectra of both rows by their symmetries
+                for(int u = 0; u < ans.columns; u++){
+                    int w = (width - u) % width;
+                    ans.re[u + y*ans.columns] = (re[u] + re[w])/2;
+                    ans.im[u + y*ans.columns] = (im[u] - im[w])/2;
+                    if(two){
+                        ans.re[u + (y + 1)*ans.columns] = (im[u] + im[w])/2;
+                        ans.im[u + (y + 1)*ans.columns] = (re[w] - re[u])/2;
+                    }
+                }
+            }
+        });
+        ans.transformColumns(columns, false, parallelism);
+        return ans;
+    }
+
+    /**
+     * Multiplies this spectrum by other, which convolves the rasters circularly.
+     * @return this transform
+     */
+    public FourierTransform multiply(FourierTransform other){
+        if(other.width != width || other.height != height)
+            throw new IllegalArgumentException();
+        for(int i = 0; i < re.length; i++){
+            double r = re[i]*other.re[i] - im[i]*other.im[i];
+            im[i] = re[i]*other.im[i] + im[i]*other.re[i];
+            re[i] = r;
+        }
+        return this;
+    }
+
+    /**
+     * Transforms the spectrum back, leaving it unusable.
+     * @return the raster, the sample (x, y) at (x + y*width)
+     */
+    public double[] inverse(Parallelism parallelism){
+        transformColumns(Plan.of(height), true, parallelism);
+        Plan rows = Plan.of(width);
+        double[] ans = new double[width*height];
+        double scale = 1.0/((double) width*height);
+        int pairs = (height + 1)/2;
+        parallelism.forEachStripe(width, pairs, (p0, p1) -> {
+            double[] re = new double[width], im = new double[width];
+            for(int p = p0; p < p1; p++){
+                int y = 2*p;
+                boolean two = y + 1 < height;
+                // Both real rows as one complex row, columns past width/2 are conjugates
+                for(int u = 0; u < width; u++){
+                    boolean kept = u < columns;
+                    int i = (kept ? u : width - u) + y*columns;
+                    double r1 = this.re[i], i1 = kept ? this.im[i] : -this.im[i];
+                    double r2 = two ? this.re[i + columns] : 0, i2 = two ? (kept ? this.im[i + columns] : -this.im[i + columns]) : 0;
+                    re[u] = r1 - i2;
+                    im[u] = i1 + r2;
+                }
+                rows.transform(re, im, true);
+                for(int x = 0; x < width; x++){
+                    ans[x + y*width] = re[x]*scale;
+                    if(two)
+                        ans[x + (y + 1)*width] = im[x]*scale;
+                }
+            }
+        });
+        return ans;
+    }
+
+    private void transformColumns(Plan plan, boolean inverse, Parallelism parallelism){
+        parallelism.forEachStripe(height, columns, (u0, u1) -> {
+            double[] re = new double[height], im = new double[height];
+            for(int u = u0; u < u1; u++){
+                for(int v = 0; v < height; v++){
+                    re[v] = this.re[u + v*columns];
+                    im[v] = this.im[u + v*columns];
+                }
+                plan.transform(re, im, inverse);
+                for(int v = 0; v < height; v++){
+                    this.re[u + v*columns] = re[v];
+                    this.im[u + v*columns] = im[v];
+                }
+            }
+        });
+    }
+
+    /**
+     * Unnormalised transform of one length, shared by every transform of that length.
+     */
+    private static final class Plan {
+
+        private static final Map<Integer, Plan> PLANS = new ConcurrentHashMap<>();
+
+        private final int n;
+        /**
+         * Length of the radix 2 transform, n or a power of two of at least 2n - 1 for Bluestein's
+         */
+        private final int m;
+        private final double[] cos, sin;
+        /**
+         * Bluestein's chirp exp(-i pi k^2 / n) and the transform of its conjugate, null for powers of two
+         */
+        private final double[] chirpRe, chirpIm, filterRe, filterIm;
+
+        static Plan of(int n){
+            return PLANS.computeIfAbsent(n, Plan::new);
+        }
+
+        private Plan(int n){
+            this.n = n;
+            boolean powerOfTwo = (n & (n - 1)) == 0;
+            m = powerOfTwo ? n : Integer.highestOneBit(2*n - 1) << 1;
+            cos = new double[m/2];
+            sin = new double[m/2];
+            for(int k = 0; k < m/2; k++){
+                cos[k] = Math.cos(2*Math.PI*k/m);
+                sin[k] = Math.sin(2*Math.PI*k/m);
+            }
+            if(powerOfTwo){
+                chirpRe = chirpIm = filterRe = filterIm = null;
+                return;
+            }
+            chirpRe = new double[n];
+            chirpIm = new double[n];
+            filterRe = new double[m];
+            filterIm = new double[m];
+            for(int k = 0; k < n; k++){
+                // k^2 mod 2n keeps the angle small
+                double angle = Math.PI*((long) k*k % (2L*n))/n;
+                chirpRe[k] = Math.cos(angle);
+                chirpIm[k] = -Math.sin(angle);
+                filterRe[k] = chirpRe[k];
+                filterIm[k] = -chirpIm[k];
+                if(k > 0){
+                    filterRe[m - k] = chirpRe[k];
+                    filterIm[m - k] = -chirpIm[k];
+                }
+            }
+            radix2(filterRe, filterIm, false);
+        }
+
+        /**
+         * Transforms re + i im in place, with the exponent sign of the inverse transform if inverse.
+         */
+        void transform(double[] re, double[] im, boolean inverse){
+            if(chirpRe == null){
+                radix2(re, im, inverse);
+                return;
+            }
+            // The inverse is the conjugate of the forward transform of the conjugate
+            double[] aRe = new double[m], aIm = new double[m];
+            for(int k = 0; k < n; k++){
+                double i = inverse ? -im[k] : im[k];
+                aRe[k] = re[k]*chirpRe[k] - i*chirpIm[k];
+                aIm[k] = re[k]*chirpIm[k] + i*chirpRe[k];
+            }
+            radix2(aRe, aIm, false);
+            for(int k = 0; k < m; k++){
+                double r = aRe[k]*filterRe[k] - aIm[k]*filterIm[k];
+                aIm[k] = aRe[k]*filterIm[k] + aIm[k]*filterRe[k];
+                aRe[k] = r;
+            }
+            radix2(aRe, aIm, true);
+            for(int k = 0; k < n; k++){
+                double r = (aRe[k]*chirpRe[k] - aIm[k]*chirpIm[k])/m;
+                double i = (aRe[k]*chirpIm[k] + aIm[k]*chirpRe[k])/m;
+                re[k] = r;
+                im[k] = inverse ? -i : i;
+            }
+        }
+
+        private void radix2(double[] re, double[] im, boolean inverse){
+            for(int i = 1, j = 0; i < m; i++){
+                int bit = m >> 1;
+                for(; (j & bit) != 0; bit >>= 1)
+                    j ^= bit;
+                j ^= bit;
+                if(i < j){
+                    double t = re[i]; re[i] = re[j]; re[j] = t;
+                    t = im[i]; im[i] = im[j]; im[j] = t;
+                }
+            }
+            for(int length = 2; length <= m; length <<= 1){
+                int half = length/2, step = m/length;
+                for(int i = 0; i < m; i += length){
+                    for(int k = 0; k < half; k++){
+                        double wr = cos[k*step], wi = inverse ? sin[k*step] : -sin[k*step];
+                        int a = i + k, b = a + half;
+                        double xr = re[b]*wr - im[b]*wi, xi = re[b]*wi + im[b]*wr;
+                        re[b] = re[a] - xr;
+                        im[b] = im[a] - xi;
+                        re[a] += xr;
+                        im[a] += xi;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package formats;
+
+import utils.MathUtils;
+
+import java.util.Arrays;
+
+/**
+ * Medians of the windows of a band of 8 bit levels read off histograms, after Perreault and Hebert.
+ * <p>
+ * There's a histogram per column, over the rows of the window, slid down a row
+ * at a time, and the histogram of the window is the sum of n of them, slid along the row. Histograms
+ * have 16 coarse bins of 16 fine ones, and fine bins of the window are only brought up to date when
+ * the median falls among them, so the cost per pixel doesn't depend on n. Weighted masks are left to
+ * {@link RankFilter}.
+ * <p>
+ * Windows are cut by the borders. Levels are read from a {@link PaddedImage} filled with the tile
+ * filtered and a halo of n/2. A filter keeps its histograms between calls, so each thread needs its
+ * own.
+ */
+final class HistogramMedian {
+
+    private static final int LEVELS = 256, COARSE = 16, SHIFT = 4;
+
+    private final int width, height, n;
+    private final int[] columns, coarseColumns, fine = new int[LEVELS], coarse = new int[COARSE];
+    /**
+     * Column the window was centred on when each range of fine bins was last brought up to date
+     */
+    private final int[] updated = new int[COARSE];
+
+    /**
+     * @param window window whose tiles are filtered, which histograms of columns span
+     */
+    HistogramMedian(PaddedImage window, int n){
+        width = window.width;
+        height = window.height;
+        this.n = n;
+        columns = new int[window.stride*LEVELS];
+        coarseColumns = new int[window.stride*COARSE];
+    }
+
+    /**
+     * Writes the medians of band c of the tile [x0, x1) x [y0, y1) the window is filled with to out,
+     * the one of (x, y) at (x - x0 + (y - y0)*(x1 - x0)). Histograms of columns are kept from the
+     * column x0 - n/2 on.
+     */
+    void filter(PaddedImage window, int c, int x0, int y0, int x1, int y1, int[] out){
+        int d = n/2, origin = x0 - d, from = Math.max(0, x0 - d), to = Math.min(width, x1 + d);
+        int[] band = window.levels[c];
+        Arrays.fill(columns, 0);
+        Arrays.fill(coarseColumns, 0);
+        for(int r = Math.max(0, y0 - d); r < Math.min(height, y0 + d); r++)
+            addRow(band, window.index(from, r), from - origin, to - from, 1);
+        for(int y = y0; y < y1; y++){
+            if(y + d < height)
+                addRow(band, window.index(from, y + d), from - origin, to - from, 1);
+            if(y > y0 && y - d - 1 >= 0)
+                addRow(band, window.index(from, y - d - 1), from - origin, to - from, -1);
+            int rows = Math.min(height - 1, y + d) - Math.max(0, y - d) + 1;
+
+            Arrays.fill(coarse, 0);
+            Arrays.fill(fine, 0);
+            // No window 2d + 1 columns before the first shares a column with it, so the first
+            // update counts every fine bin it needs
+            Arrays.fill(updated, x0 - 2*d - 1);
+            for(int x = from; x < x0 + d && x < width; x++)
+                addCoarse(x - origin, 1);
+            for(int x = x0; x < x1; x++){
+                if(x + d < width)
+                    addCoarse(x + d - origin, 1);
+                if(x > x0 && x - d - 1 >= 0)
+                    addCoarse(x - d - 1 - origin, -1);
+                int rank = MathUtils.medianIndex(rows*(Math.min(width - 1, x + d) - Math.max(0, x - d) + 1));
+                int k = 0, below = 0;
+                while(below + coarse[k] <= rank)
+                    below += coarse[k++];
+                update(k, x, d, origin);
+                int level = k << SHIFT;
+                while(below + fine[level] <= rank)
+                    below += fine[level++];
+                out[x - x0 + (y - y0)*(x1 - x0)] = level;
+            }
+        }
+    }
+
+    /**
+     * Adds count levels of band from start on to the histograms of the columns from column on
+     */
+    private void addRow(int[] band, int start, int column, int count, int sign){
+        for(int x = column, k = start; x < column + count; x++, k++){
+            int level = band[k];
+            columns[x*LEVELS + level] += sign;
+            coarseColumns[x*COARSE + (level >> SHIFT)] += sign;
+        }
+    }
+
+    private void addCoarse(int x, int sign){
+        for(int k = 0, from = x*COARSE; k < COARSE; k++)
+            coarse[k] += sign*coarseColumns[from + k];
+    }
+
+    /**
+     * Brings the fine bins of the coarse bin k up to date for the window centred on x, histograms of
+     * columns starting at origin
+     */
+    private void update(int k, int x, int d, int origin){
+        int last = updated[k];
+        updated[k] = x;
+        if(x - last > 2*d){
+            Arrays.fill(fine, k << SHIFT, (k + 1) << SHIFT, 0);
+            for(int column = Math.max(0, x - d); column <= Math.min(width - 1, x + d); column++)
+                addFine(k, column - origin, 1);
+            return;
+        }
+        for(int column = Math.max(0, last - d); column < x - d; column++)
+            addFine(k, column - origin, -1);
+        for(int column = last + d + 1; column <= Math.min(width - 1, x + d); column++)
+            addFine(k, column - origin, 1);
+    }
+
+    private void addFine(int k, int column, int sign){
+        for(int level = k << SHIFT, from = column*LEVELS; level < (k + 1) << SHIFT; level++)
+            fine[level] += sign*columns[from + level];
+    }
+}
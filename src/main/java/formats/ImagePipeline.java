@@ -0,0 +1,214 @@
+package formats;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Point operations recorded on an image and run together when their result is needed.
+ * <p>
+ * Every operation rounds its output to 8 bit levels, so on an image whose samples are levels
+ * the whole chain maps each input level to an output level. A single pass builds the histogram
+ * of the image, the statistics of every stage (maximums, minimums, histograms) are taken from it,
+ * and a single pass applies the composed {@link LookupTable}. The result is the same as running
+ * the operations one by one.
+ */
+public class ImagePipeline {
+
+    private static class Stage {
+        /**
+         * Builds the function of the stage from the histogram of its input levels.
+         */
+        final Function<double[], Image.PixelFunction> bind;
+        /**
+         * Runs the stage in place, for inputs which aren't levels.
+         */
+        final Consumer<Image> run;
+
+        Stage(Function<double[], Image.PixelFunction> bind, Consumer<Image> run){
+            this.bind = bind;
+            this.run = run;
+        }
+    }
+
+    private final Image source;
+    private final List<Stage> stages = new ArrayList<>();
+    private Image result;
+
+    /**
+     * @param source the image, which is read as it is now
+     */
+    public ImagePipeline(Image source){
+        if(source.getEncoding() == Encoding.HSV)
+            throw new IllegalArgumentException();
+        this.source = source.clone();
+    }
+
+    public ImagePipeline map(Image.PixelFunction function){
+        return add(new Stage(histogram -> function, image -> image.mapInPlace(function)));
+    }
+
+    public ImagePipeline negative(){
+        return add(new Stage(histogram -> Image::negative, Image::negativeInPlace));
+    }
+
+    public ImagePipeline thresholding(double u){
+        return add(new Stage(histogram -> r -> Image.thresholding(r, u), image -> image.thresholdingInPlace(u)));
+    }
+
+    public ImagePipeline dynamicRangeCompression(){
+        return add(new Stage(histogram -> {
+            double max = max(histogram, r -> r);
+            return r -> Image.dynamicRangeCompression(r, max);
+        }, Image::dynamicRangeCompressionInPlace));
+    }
+
+    public ImagePipeline scalarProduct(double n){
+        return add(new Stage(histogram -> {
+            double max = max(histogram, r -> r) * n;
+            return r -> Image.dynamicRangeCompression(r * n, max);
+        }, image -> image.scalarProductInPlace(n)));
+    }
+
+    public ImagePipeline gammaCorrection(double g){
+        return add(new Stage(histogram -> {
+            double max = max(histogram, r -> Image.gammaCorrection(r, g));
+            double min = min(histogram, r -> Image.gammaCorrection(r, g));
+            return r -> (Image.gammaCorrection(r, g) - min) / (max - min);
+        }, image -> image.gammaCorrectionInPlace(g)));
+    }
+
+    public ImagePipeline equalize(){
+        return add(new Stage(histogram -> {
+            double[] relativeHisto = source.cummulativeRelativeHistogram(histogram, Arrays.stream(histogram).sum());
+            double[] transf = Image.equalizedTransformation(histogram, relativeHisto);
+            return r -> transf[Image.M & Image.doubleToByte(r)] / 255;
+        }, Image::equalizeInPlace));
+    }
+
+    /**
+     * Stretches the samples of each band linearly to [0, 1].
+     */
+    public ImagePipeline normalize(){
+        return add(new Stage(histogram -> {
+            double max = max(histogram, r -> r), min = min(histogram, r -> r);
+            return r -> (r - min) / (max - min);
+        }, image -> {
+            for(int c = 0; c < image.getEncoding().getBands(); c++){
+                double[] maxMin = image.maxAndMin(c);
+                image.map(c, r -> (r - maxMin[1]) / (maxMin[0] - maxMin[1]));
+            }
+        }));
+    }
+
+    /**
+     * Runs the recorded operations, once until more are recorded.
+     * @return a new image
+     */
+    public Image toImage(){
+        if(result == null)
+            result = run();
+        return result.clone();
+    }
+
+    public BufferedImage toBufferedImage(){
+        if(result == null)
+            result = run();
+        return result.toBufferedImage();
+    }
+
+    private ImagePipeline add(Stage stage){
+        stages.add(stage);
+        result = null;
+        return this;
+    }
+
+    private Image run(){
+        Image ans = source.clone();
+        if(stages.isEmpty())
+            return ans;
+        int bands = source.getEncoding().getBands();
+        double[][] histograms;
+        boolean levels = true;
+        if(source.getSampleType() == SampleType.BYTE){
+            histograms = histograms(ans);
+        } else {
+            // One histogram per band, then the amount of samples which aren't levels
+            histograms = source.reduce(() -> new double[bands + 1][256], (partial, x, y) -> {
+                for(int c = 0; c < bands; c++){
+                    double sample = source.getComponent(x, y, c);
+                    if(sample != Image.round(sample))
+                        partial[bands][0]++;
+                    partial[c][Image.M & Image.doubleToByte(sample)]++;
+                }
+            }, ImagePipeline::sum);
+            levels = histograms[bands][0] == 0;
+        }
+        List<Stage> fused = stages;
+        if(!levels){
+            // The first stage rounds its output, the rest of them can be fused
+            stages.get(0).run.accept(ans);
+            if(stages.size() == 1)
+                return ans;
+            fused = stages.subList(1, stages.size());
+            histograms = histograms(ans);
+        }
+        for(int c = 0; c < bands; c++)
+            ans.map(c, new LookupTable(compose(fused, histograms[c])));
+        return ans;
+    }
+
+    /**
+     * @param histogram of the input levels
+     * @return output level of each input level
+     */
+    private static byte[] compose(List<Stage> stages, double[] histogram){
+        byte[] table = new byte[256];
+        for(int level = 0; level < table.length; level++)
+            table[level] = (byte) level;
+        double[] current = histogram;
+        for(Stage stage : stages){
+            Image.PixelFunction function = stage.bind.apply(current);
+            double[] next = new double[256];
+            for(int level = 0; level < table.length; level++){
+                table[level] = Image.doubleToByte(function.apply(Image.byteToDouble(table[level])));
+                next[Image.M & table[level]] += histogram[level];
+            }
+            current = next;
+        }
+        return table;
+    }
+
+    private static double[][] histograms(Image image){
+        double[][] ans = new double[image.getEncoding().getBands()][];
+        for(int c = 0; c < ans.length; c++)
+            ans[c] = image.histogram(c);
+        return ans;
+    }
+
+    private static double[][] sum(double[][] a, double[][] b){
+        for(int i = 0; i < a.length; i++)
+            for(int j = 0; j < a[i].length; j++)
+                a[i][j] += b[i][j];
+        return a;
+    }
+
+    private static double max(double[] histogram, Image.PixelFunction function){
+        double ans = Double.MIN_VALUE;
+        for(int level = 0; level < histogram.length; level++)
+            if(histogram[level] != 0)
+                ans = Math.max(ans, function.apply(Image.byteToDouble((byte) level)));
+        return ans;
+    }
+
+    private static double min(double[] histogram, Image.PixelFunction function){
+        double ans = Double.MAX_VALUE;
+        for(int level = 0; level < histogram.length; level++)
+            if(histogram[level] != 0)
+                ans = Math.min(ans, function.apply(Image.byteToDouble((byte) level)));
+        return ans;
+    }
+}
@@ -0,0 +1,162 @@
+package formats;
+
+import lombok.Getter;
+
+/**
+ * Summed area tables of the samples and squared samples of every band of an image, answering
+ * sums, means and variances over any box in constant time.
+ * <p>
+ * Sums are kept in 8 bit level units. If every sample is a level they are exact {@code long}s,
+ * otherwise {@code double}s.
+ */
+public final class IntegralImage {
+
+    @Getter
+    private final int width, height;
+    /**
+     * Per band, the sum over [0, x) x [0, y) at (x + y*(width + 1)), null in the mode not used.
+     */
+    private final long[][] levelSums, levelSquares;
+    private final double[][] sums, squares;
+
+    /**
+     * Builds the tables of image as it is now, use {@link Image#integralImage()} to share them.
+     */
+    public IntegralImage(Image image){
+        width = image.getWidth();
+        height = image.getHeight();
+        int bands = image.getEncoding().getBands(), length = (width + 1)*(height + 1);
+        long[][] levelSums = new long[bands][length], levelSquares = new long[bands][length];
+        double[][] sums = null, squares = null;
+        for(int c = 0; c < bands && sums == null; c++){
+            for(int y = 0; y < height && sums == null; y++){
+                long row = 0, rowSquares = 0;
+                for(int x = 0; x < width; x++){
+                    double sample = image.getComponent(x, y, c);
+                    long level = Image.M & Image.doubleToByte(sample);
+                    if(sample != Image.byteToDouble((byte) level)){
+                        // Not a level, start over with doubles
+                        sums = new double[bands][length];
+                        squares = new double[bands][length];
+                        break;
+                    }
+                    row += level;
+                    rowSquares += level*level;
+                    int i = index(x + 1, y + 1);
+                    levelSums[c][i] = levelSums[c][i - width - 1] + row;
+                    levelSquares[c][i] = levelSquares[c][i - width - 1] + rowSquares;
+                }
+            }
+        }
+        if(sums != null){
+            for(int c = 0; c < bands; c++){
+                for(int y = 0; y < height; y++){
+                    double row = 0, rowSquares = 0;
+                    for(int x = 0; x < width; x++){
+                        double sample = image.getComponent(x, y, c)/Image.U;
+                        row += sample;
+                        rowSquares += sample*sample;
+                        int i = index(x + 1, y + 1);
+                        sums[c][i] = sums[c][i - width - 1] + row;
+                        squares[c][i] = squares[c][i - width - 1] + rowSquares;
+                    }
+                }
+            }
+            levelSums = levelSquares = null;
+        }
+        this.levelSums = levelSums;
+        this.levelSquares = levelSquares;
+        this.sums = sums;
+        this.squares = squares;
+    }
+
+    /**
+     * @return whether sums are exact, every sample being an 8 bit level
+     */
+    public boolean isExact(){
+        return levelSums != null;
+    }
+
+    /**
+     * @return sum of component over the box [x0, x1) x [y0, y1)
+     */
+    public double sum(int component, int x0, int y0, int x1, int y1){
+        checkBox(x0, y0, x1, y1);
+        return box(component, false, x0, y0, x1, y1)*Image.U;
+    }
+
+    public double mean(int component, int x0, int y0, int x1, int y1){
+        checkBox(x0, y0, x1, y1);
+        return box(component, false, x0, y0, x1, y1)/((x1 - x0)*(y1 - y0))*Image.U;
+    }
+
+    /**
+     * @return population variance of component over the box [x0, x1) x [y0, y1)
+     */
+    public double variance(int component, int x0, int y0, int x1, int y1){
+        checkBox(x0, y0, x1, y1);
+        double n = (x1 - x0)*(y1 - y0), sum = box(component, false, x0, y0, x1, y1);
+        double variance = (box(component, true, x0, y0, x1, y1) - sum*sum/n)/n;
+        return Math.max(0, variance)*Image.U*Image.U;
+    }
+
+    /**
+     * Sum of component over the w x h box whose top left pixel is (x, y), wrapping around the
+     * borders as many times as the box needs.
+     */
+    public double wrappedSum(int component, int x, int y, int w, int h){
+        return wrapped(component, x, y, w, h)*Image.U;
+    }
+
+    /**
+     * Mean of component over the w x h box whose top left pixel is (x, y), wrapping around the
+     * borders as many times as the box needs.
+     */
+    public double wrappedMean(int component, int x, int y, int w, int h){
+        return wrapped(component, x, y, w, h)/((double) w*h)*Image.U;
+    }
+
+    private double wrapped(int component, int x, int y, int w, int h){
+        if(w <= 0 || h <= 0)
+            throw new IllegalArgumentException();
+        // Whole periods of each axis, then the rest of the box, which may cross the border once
+        int x0 = Math.floorMod(x, width), rx = w % width, y0 = Math.floorMod(y, height), ry = h % height;
+        int[] xs = {0, width, x0, Math.min(x0 + rx, width), 0, Math.max(0, x0 + rx - width)};
+        int[] ys = {0, height, y0, Math.min(y0 + ry, height), 0, Math.max(0, y0 + ry - height)};
+        int[] timesX = {w / width, 1, 1}, timesY = {h / height, 1, 1};
+        double ans = 0;
+        for(int a = 0; a < 3; a++){
+            if(timesX[a] == 0 || xs[2*a] == xs[2*a + 1])
+                continue;
+            for(int b = 0; b < 3; b++){
+                if(timesY[b] == 0 || ys[2*b] == ys[2*b + 1])
+                    continue;
+                ans += (double) timesX[a]*timesY[b]*box(component, false, xs[2*a], ys[2*b], xs[2*a + 1], ys[2*b + 1]);
+            }
+        }
+        return ans;
+    }
+
+    /**
+     * @return sum in level units, exact if the tables are
+     */
+    private double box(int component, boolean squared, int x0, int y0, int x1, int y1){
+        if(levelSums != null){
+            long[] table = squared ? levelSquares[component] : levelSums[component];
+            return table[index(x1, y1)] - table[index(x0, y1)] - table[index(x1, y0)] + table[index(x0, y0)];
+        }
+        double[] table = squared ? squares[component] : sums[component];
+        return table[index(x1, y1)] - table[index(x0, y1)] - table[index(x1, y0)] + table[index(x0, y0)];
+    }
+
+    private int index(int x, int y){
+        return x + y*(width + 1);
+    }
+
+    private void checkBox(int x0, int y0, int x1, int y1){
+        if(x0 < 0 || y0 < 0 || x1 > width || y1 > height)
+            throw new IndexOutOfBoundsException();
+        if(x0 >= x1 || y0 >= y1)
+            throw new IllegalArgumentException("Point 1 must be lower than point 2");
+    }
+}
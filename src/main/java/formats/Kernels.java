@@ -0,0 +1,172 @@
+package formats;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Masks of the filters, computed once per type, size and sigma and shared by every caller.
+ * <p>
+ * Weights are flat, the one of the sample a - n/2 columns and b - n/2 rows away at [a*n + b], and
+ * not normalised.
+ */
+public final class Kernels {
+
+    public enum Type {
+        /**
+         * exp(-(x^2 + y^2)/2 sigma^2), separable
+         */
+        GAUSS,
+        /**
+         * Laplacian of the Gaussian, -(2 - r^2/sigma^2) exp(-r^2/2 sigma^2) / (sqrt(2 pi) sigma^3)
+         */
+        LOG
+    }
+
+    /**
+     * Kernels kept at most, the cache starts over past it
+     */
+    private static final int MAX_KERNELS = 256;
+
+    private static final Map<Key, Kernel> CACHE = new ConcurrentHashMap<>();
+
+    private Kernels(){
+    }
+
+    public static Kernel gauss(int n, double sigma){
+        return get(Type.GAUSS, n, sigma);
+    }
+
+    public static Kernel loG(int n, double sigma){
+        return get(Type.LOG, n, sigma);
+    }
+
+    public static Kernel get(Type type, int n, double sigma){
+        if(n <= 0 || (n % 2) == 0 || sigma < 0)
+            throw new IllegalArgumentException();
+        Key key = new Key(type, n, sigma);
+        Kernel kernel = CACHE.get(key);
+        if(kernel != null)
+            return kernel;
+        if(CACHE.size() >= MAX_KERNELS)
+            CACHE.clear();
+        return CACHE.computeIfAbsent(key, Kernels::compute);
+    }
+
+    private static Kernel compute(Key key){
+        int n = key.n, d = n/2;
+        double sigma = key.sigma;
+        if(key.type == Type.GAUSS){
+            // exp(-(x^2 + y^2)/2s^2) is exp(-x^2/2s^2)*exp(-y^2/2s^2)
+            double[] factor = new double[n];
+            double sum = 0;
+            for(int j = 0; j < n; j++){
+                factor[j] = Math.exp(-Math.pow(j - d, 2) / (2 * Math.pow(sigma, 2)));
+                sum += factor[j];
+            }
+            double[] weights = new double[n*n];
+            for(int a = 0; a < n; a++)
+                for(int b = 0; b < n; b++)
+                    weights[a*n + b] = factor[a]*factor[b];
+            return new Kernel(n, weights, factor, sum*sum);
+        }
+        double[] weights = new double[n*n];
+        double sum = 0;
+        for(int a = 0; a < n; a++){
+            for(int b = 0; b < n; b++){
+                double r2 = (Math.pow(a - d, 2) + Math.pow(b - d, 2)) / Math.pow(sigma, 2);
+                sum += weights[a*n + b] = (-1.0 / (Math.sqrt(2.0 * Math.PI) * Math.pow(sigma, 3))) * (2 - r2) * Math.exp(-r2/2);
+            }
+        }
+        return new Kernel(n, weights, null, sum);
+    }
+
+    /**
+     * A shared kernel. Its getters copy the weights, which nothing may write.
+     */
+    public static final class Kernel {
+
+        @Getter
+        private final int size;
+        /**
+         * Sum of the weights
+         */
+        @Getter
+        private final double sum;
+        private final double[] weights, factor;
+        private final double[][] mask;
+
+        private Kernel(int size, double[] weights, double[] factor, double sum){
+            this.size = size;
+            this.weights = weights;
+            this.factor = factor;
+            this.sum = sum;
+            mask = new double[size][];
+            for(int a = 0; a < size; a++)
+                mask[a] = Arrays.copyOfRange(weights, a*size, (a + 1)*size);
+        }
+
+        public double weight(int a, int b){
+            return weights[a*size + b];
+        }
+
+        public double[] getWeights(){
+            return weights.clone();
+        }
+
+        public boolean isSeparable(){
+            return factor != null;
+        }
+
+        /**
+         * @return f such that the weight of (a, b) is f[a]*f[b], null if the kernel isn't separable
+         */
+        public double[] getFactor(){
+            return factor == null ? null : factor.clone();
+        }
+
+        /**
+         * The shared arrays, for the loops of this package
+         */
+        double[] weights(){
+            return weights;
+        }
+
+        double[] factor(){
+            return factor;
+        }
+
+        double[][] mask(){
+            return mask;
+        }
+    }
+
+    private static final class Key {
+
+        private final Type type;
+        private final int n;
+        private final double sigma;
+
+        Key(Type type, int n, double sigma){
+            this.type = type;
+            this.n = n;
+            this.sigma = sigma;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return type == key.type && n == key.n && Double.compare(sigma, key.sigma) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, n, sigma);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package formats;
+
+/**
+ * A point operation evaluated once for each of the 256 levels of an 8 bit sample.
+ * Applying it to an 8 bit sample gives the same level as rounding the result of the operation.
+ */
+public final class LookupTable {
+
+    private final byte[] table;
+
+    public LookupTable(Image.PixelFunction function){
+        table = new byte[256];
+        for(int level = 0; level < table.length; level++)
+            table[level] = Image.doubleToByte(function.apply(Image.byteToDouble((byte) level)));
+    }
+
+    /**
+     * @param table output level of each input level
+     */
+    LookupTable(byte[] table){
+        if(table.length != 256)
+            throw new IllegalArgumentException();
+        this.table = table;
+    }
+
+    public byte apply(byte level){
+        return table[Image.M & level];
+    }
+
+    public double apply(double sample){
+        return Image.byteToDouble(apply(Image.doubleToByte(sample)));
+    }
+
+    /**
+     * @return output level of each input level, the same array in every call
+     */
+    byte[] levels(){
+        return table;
+    }
+}
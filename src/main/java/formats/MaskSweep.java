@@ -0,0 +1,257 @@
+package formats;
+
+/**
+ * Dense masks of one size compiled to run together over the rows of a {@link PaddedImage}. 3x3 and
+ * 5x5 masks run unrolled with their weights in locals, and masks of whole numbers whose responses
+ * fit in an int can accumulate ints over 8 bit levels.
+ * <p>
+ * Terms are added in the order of the loops over mask[a][b], a first, so results don't depend on
+ * the size being unrolled.
+ */
+abstract class MaskSweep {
+
+    final int n, stride;
+    /**
+     * Per mask, mask[a][b] at [a*n + b], and the same as ints if every weight is a whole number and
+     * no response over levels, nor any partial sum of it, can overflow an int
+     */
+    final double[][] weights;
+    final int[][] integerWeights;
+    /**
+     * Where the responses of each mask go in the arrays given to apply
+     */
+    final int[] targets;
+
+    private MaskSweep(int n, double[][] weights, int[] targets, int stride){
+        this.n = n;
+        this.weights = weights;
+        this.targets = targets;
+        this.stride = stride;
+        int[][] integerWeights = new int[weights.length][n*n];
+        for(int m = 0; m < weights.length && integerWeights != null; m++){
+            double total = 0;
+            for(int k = 0; k < n*n; k++){
+                double w = weights[m][k];
+                total += Math.abs(w);
+                if(w != Math.rint(w) || Image.M*total > Integer.MAX_VALUE){
+                    integerWeights = null;
+                    break;
+                }
+                integerWeights[m][k] = (int) w;
+            }
+        }
+        this.integerWeights = integerWeights;
+    }
+
+    /**
+     * @param masks square masks of one size, mask[a][b] weighting the sample a - n/2 columns and
+     *              b - n/2 rows away
+     * @param stride of the padded images it will read
+     */
+    static MaskSweep compile(double[][][] masks, int[] targets, int stride){
+        int n = masks[0].length;
+        double[][] weights = new double[masks.length][n*n];
+        for(int m = 0; m < masks.length; m++){
+            if(masks[m].length != n)
+                throw new IllegalArgumentException();
+            for(int a = 0; a < n; a++)
+                System.arraycopy(masks[m][a], 0, weights[m], a*n, n);
+        }
+        switch (n){
+            case 3:
+                return new Sweep3(weights, targets, stride);
+            case 5:
+                return new Sweep5(weights, targets, stride);
+            default:
+                return new Generic(n, weights, targets, stride);
+        }
+    }
+
+    boolean isInteger(){
+        return integerWeights != null;
+    }
+
+    /**
+     * Writes the responses of every mask at the count samples of band from k on, the one at k + x
+     * in out[targets[m]][x]
+     */
+    abstract void apply(double[] band, int k, int count, double[][] out);
+
+    /**
+     * Same over levels, only for masks of whole numbers
+     */
+    abstract void apply(int[] levels, int k, int count, double[][] out);
+
+    private static final class Generic extends MaskSweep {
+
+        private final int[] offsets;
+
+        Generic(int n, double[][] weights, int[] targets, int stride){
+            super(n, weights, targets, stride);
+            int d = n/2;
+            offsets = new int[n*n];
+            for(int a = 0; a < n; a++)
+                for(int b = 0; b < n; b++)
+                    offsets[a*n + b] = (a - d) + (b - d)*stride;
+        }
+
+        @Override
+        void apply(double[] band, int k, int count, double[][] out){
+            for(int m = 0; m < targets.length; m++){
+                double[] w = weights[m], o = out[targets[m]];
+                for(int x = 0; x < count; x++){
+                    double accum = 0;
+                    for(int t = 0; t < w.length; t++)
+                        accum += w[t]*band[k + x + offsets[t]];
+                    o[x] = accum;
+                }
+            }
+        }
+
+        @Override
+        void apply(int[] levels, int k, int count, double[][] out){
+            for(int m = 0; m < targets.length; m++){
+                int[] w = integerWeights[m];
+                double[] o = out[targets[m]];
+                for(int x = 0; x < count; x++){
+                    int accum = 0;
+                    for(int t = 0; t < w.length; t++)
+                        accum += w[t]*levels[k + x + offsets[t]];
+                    o[x] = accum*Image.U;
+                }
+            }
+        }
+    }
+
+    /**
+     * 3x3 masks, unrolled, in pairs
+     */
+    private static final class Sweep3 extends MaskSweep {
+
+        Sweep3(double[][] weights, int[] targets, int stride){
+            super(3, weights, targets, stride);
+        }
+
+        @Override
+        void apply(double[] band, int k, int count, double[][] out){
+            int s = stride;
+            int m = 0;
+            // Pairs of masks share the reads of each neighbourhood
+            for(; m + 1 < targets.length; m += 2){
+                double[] mask = weights[m];
+                double w0 = mask[0], w1 = mask[1], w2 = mask[2], w3 = mask[3], w4 = mask[4], w5 = mask[5], w6 = mask[6], w7 = mask[7], w8 = mask[8];
+                double[] other = weights[m + 1];
+                double v0 = other[0], v1 = other[1], v2 = other[2], v3 = other[3], v4 = other[4], v5 = other[5], v6 = other[6], v7 = other[7], v8 = other[8];
+                double[] o = out[targets[m]], q = out[targets[m + 1]];
+                for(int x = 0; x < count; x++){
+                    int i = k + x;
+                    double p0 = band[i - 1 - s], p1 = band[i - 1], p2 = band[i - 1 + s],
+                           p3 = band[i - s], p4 = band[i], p5 = band[i + s],
+                           p6 = band[i + 1 - s], p7 = band[i + 1], p8 = band[i + 1 + s];
+                    o[x] = w0*p0 + w1*p1 + w2*p2 + w3*p3 + w4*p4 + w5*p5 + w6*p6 + w7*p7 + w8*p8;
+                    q[x] = v0*p0 + v1*p1 + v2*p2 + v3*p3 + v4*p4 + v5*p5 + v6*p6 + v7*p7 + v8*p8;
+                }
+            }
+            for(; m < targets.length; m++){
+                double[] mask = weights[m];
+                double w0 = mask[0], w1 = mask[1], w2 = mask[2], w3 = mask[3], w4 = mask[4], w5 = mask[5], w6 = mask[6], w7 = mask[7], w8 = mask[8];
+                double[] o = out[targets[m]];
+                for(int x = 0; x < count; x++){
+                    int i = k + x;
+                    o[x] = w0*band[i - 1 - s] + w1*band[i - 1] + w2*band[i - 1 + s]
+                        + w3*band[i - s] + w4*band[i] + w5*band[i + s]
+                        + w6*band[i + 1 - s] + w7*band[i + 1] + w8*band[i + 1 + s];
+                }
+            }
+        }
+
+        @Override
+        void apply(int[] levels, int k, int count, double[][] out){
+            int s = stride;
+            int m = 0;
+            // Pairs of masks share the reads of each neighbourhood
+            for(; m + 1 < targets.length; m += 2){
+                int[] mask = integerWeights[m];
+                int w0 = mask[0], w1 = mask[1], w2 = mask[2], w3 = mask[3], w4 = mask[4], w5 = mask[5], w6 = mask[6], w7 = mask[7], w8 = mask[8];
+                int[] other = integerWeights[m + 1];
+                int v0 = other[0], v1 = other[1], v2 = other[2], v3 = other[3], v4 = other[4], v5 = other[5], v6 = other[6], v7 = other[7], v8 = other[8];
+                double[] o = out[targets[m]], q = out[targets[m + 1]];
+                for(int x = 0; x < count; x++){
+                    int i = k + x;
+                    int p0 = levels[i - 1 - s], p1 = levels[i - 1], p2 = levels[i - 1 + s],
+                        p3 = levels[i - s], p4 = levels[i], p5 = levels[i + s],
+                        p6 = levels[i + 1 - s], p7 = levels[i + 1], p8 = levels[i + 1 + s];
+                    o[x] = (w0*p0 + w1*p1 + w2*p2 + w3*p3 + w4*p4 + w5*p5 + w6*p6 + w7*p7 + w8*p8)*Image.U;
+                    q[x] = (v0*p0 + v1*p1 + v2*p2 + v3*p3 + v4*p4 + v5*p5 + v6*p6 + v7*p7 + v8*p8)*Image.U;
+                }
+            }
+            for(; m < targets.length; m++){
+                int[] mask = integerWeights[m];
+                int w0 = mask[0], w1 = mask[1], w2 = mask[2], w3 = mask[3], w4 = mask[4], w5 = mask[5], w6 = mask[6], w7 = mask[7], w8 = mask[8];
+                double[] o = out[targets[m]];
+                for(int x = 0; x < count; x++){
+                    int i = k + x;
+                    o[x] = (w0*levels[i - 1 - s] + w1*levels[i - 1] + w2*levels[i - 1 + s]
+                        + w3*levels[i - s] + w4*levels[i] + w5*levels[i + s]
+                        + w6*levels[i + 1 - s] + w7*levels[i + 1] + w8*levels[i + 1 + s])*Image.U;
+                }
+            }
+        }
+    }
+
+    /**
+     * 5x5 masks, unrolled
+     */
+    private static final class Sweep5 extends MaskSweep {
+
+        Sweep5(double[][] weights, int[] targets, int stride){
+            super(5, weights, targets, stride);
+        }
+
+        @Override
+        void apply(double[] band, int k, int count, double[][] out){
+            int s = stride;
+            int s2 = 2*s;
+            for(int m = 0; m < targets.length; m++){
+                double[] mask = weights[m];
+                double w0 = mask[0], w1 = mask[1], w2 = mask[2], w3 = mask[3], w4 = mask[4],
+                       w5 = mask[5], w6 = mask[6], w7 = mask[7], w8 = mask[8], w9 = mask[9],
+                       w10 = mask[10], w11 = mask[11], w12 = mask[12], w13 = mask[13], w14 = mask[14],
+                       w15 = mask[15], w16 = mask[16], w17 = mask[17], w18 = mask[18], w19 = mask[19],
+                       w20 = mask[20], w21 = mask[21], w22 = mask[22], w23 = mask[23], w24 = mask[24];
+                double[] o = out[targets[m]];
+                for(int x = 0; x < count; x++){
+                    int i = k + x;
+                    o[x] = w0*band[i - 2 - s2] + w1*band[i - 2 - s] + w2*band[i - 2] + w3*band[i - 2 + s] + w4*band[i - 2 + s2]
+                        + w5*band[i - 1 - s2] + w6*band[i - 1 - s] + w7*band[i - 1] + w8*band[i - 1 + s] + w9*band[i - 1 + s2]
+                        + w10*band[i - s2] + w11*band[i - s] + w12*band[i] + w13*band[i + s] + w14*band[i + s2]
+                        + w15*band[i + 1 - s2] + w16*band[i + 1 - s] + w17*band[i + 1] + w18*band[i + 1 + s] + w19*band[i + 1 + s2]
+                        + w20*band[i + 2 - s2] + w21*band[i + 2 - s] + w22*band[i + 2] + w23*band[i + 2 + s] + w24*band[i + 2 + s2];
+                }
+            }
+        }
+
+        @Override
+        void apply(int[] levels, int k, int count, double[][] out){
+            int s = stride;
+            int s2 = 2*s;
+            for(int m = 0; m < targets.length; m++){
+                int[] mask = integerWeights[m];
+                int w0 = mask[0], w1 = mask[1], w2 = mask[2], w3 = mask[3], w4 = mask[4],
+                    w5 = mask[5], w6 = mask[6], w7 = mask[7], w8 = mask[8], w9 = mask[9],
+                    w10 = mask[10], w11 = mask[11], w12 = mask[12], w13 = mask[13], w14 = mask[14],
+                    w15 = mask[15], w16 = mask[16], w17 = mask[17], w18 = mask[18], w19 = mask[19],
+                    w20 = mask[20], w21 = mask[21], w22 = mask[22], w23 = mask[23], w24 = mask[24];
+                double[] o = out[targets[m]];
+                for(int x = 0; x < count; x++){
+                    int i = k + x;
+                    o[x] = (w0*levels[i - 2 - s2] + w1*levels[i - 2 - s] + w2*levels[i - 2] + w3*levels[i - 2 + s] + w4*levels[i - 2 + s2]
+                        + w5*levels[i - 1 - s2] + w6*levels[i - 1 - s] + w7*levels[i - 1] + w8*levels[i - 1 + s] + w9*levels[i - 1 + s2]
+                        + w10*levels[i - s2] + w11*levels[i - s] + w12*levels[i] + w13*levels[i + s] + w14*levels[i + s2]
+                        + w15*levels[i + 1 - s2] + w16*levels[i + 1 - s] + w17*levels[i + 1] + w18*levels[i + 1 + s] + w19*levels[i + 1 + s2]
+                        + w20*levels[i + 2 - s2] + w21*levels[i + 2 - s] + w22*levels[i + 2] + w23*levels[i + 2 + s] + w24*levels[i + 2 + s2])*Image.U;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package formats;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Window over the bands of an image: a tile surrounded by pad samples on each side, filled as a
+ * border mode says, so the neighbourhoods of its pixels are plain array reads. A window is filled
+ * again for every tile, so it takes the memory of a tile and its halo rather than of the image.
+ * <p>
+ * Once filled with the tile [x0, x1) x [y0, y1), the sample (x, y) of band c is at
+ * samples[c][index(x, y)], for x in [x0 - pad, x1 + pad) and y in [y0 - pad, y1 + pad). Windows
+ * over images whose samples are 8 bit levels can hold levels instead.
+ */
+final class PaddedImage {
+
+    final int width, height, pad, stride;
+    /**
+     * The window, null in the mode not used
+     */
+    final double[][] samples;
+    final int[][] levels;
+
+    private final Image image;
+    private final BorderMode mode;
+    private final int[] columns;
+    private int x0, y0;
+
+    /**
+     * @param levels whether to hold levels, every sample of image being one
+     */
+    PaddedImage(Image image, int pad, BorderMode mode, boolean levels){
+        if(pad < 0)
+            throw new IllegalArgumentException();
+        this.image = image;
+        this.mode = mode;
+        this.pad = pad;
+        width = image.getWidth();
+        height = image.getHeight();
+        stride = image.tileWidth() + 2*pad;
+        int bands = image.getEncoding().getBands();
+        samples = levels ? null : new double[bands][0];
+        this.levels = levels ? new int[bands][0] : null;
+        columns = new int[stride];
+    }
+
+    /**
+     * Fills the window with the tile [x0, x1) x [y0, y1) and its halo, growing it if the tile has
+     * more rows than any before
+     * @return this window
+     */
+    PaddedImage fill(int x0, int y0, int x1, int y1){
+        int length = x1 - x0 + 2*pad, rows = y1 - y0 + 2*pad;
+        if(length > stride)
+            throw new IllegalArgumentException();
+        this.x0 = x0;
+        this.y0 = y0;
+        int bands = samples != null ? samples.length : levels.length;
+        for(int c = 0; c < bands; c++){
+            if(samples != null && samples[c].length < rows*stride)
+                samples[c] = new double[rows*stride];
+            if(levels != null && levels[c].length < rows*stride)
+                levels[c] = new int[rows*stride];
+        }
+        for(int k = 0; k < length; k++)
+            columns[k] = mode.index(x0 - pad + k, width);
+        for(int r = 0; r < rows; r++){
+            int y = mode.index(y0 - pad + r, height);
+            for(int c = 0; c < bands; c++){
+                for(int k = 0; k < length; k++){
+                    boolean zero = y < 0 || columns[k] < 0;
+                    if(samples != null)
+                        samples[c][k + r*stride] = zero ? 0 : image.d(columns[k], y, c);
+                    else
+                        levels[c][k + r*stride] = zero ? 0 : Image.M & image.b(columns[k], y, c);
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return whether every sample of image is an 8 bit level, which windows can hold as ints
+     */
+    static boolean holdsLevels(Image image){
+        if(image.sampleType == SampleType.BYTE)
+            return true;
+        int bands = image.getEncoding().getBands();
+        boolean[] exact = image.reduce(() -> new boolean[]{true}, (partial, x, y) -> {
+            for(int c = 0; c < bands; c++)
+                partial[0] &= image.d(x, y, c) == Image.byteToDouble(image.b(x, y, c));
+        }, (a, b) -> new boolean[]{a[0] && b[0]});
+        return exact[0];
+    }
+
+    int index(int x, int y){
+        return x - x0 + pad + (y - y0 + pad)*stride;
+    }
+
+    /**
+     * @return offsets from the index of a pixel to the samples of its n x n neighbourhood centred on
+     * it, the offset of (a - n/2, b - n/2) at [a*n + b]
+     */
+    int[] offsets(int n){
+        int d = n/2;
+        int[] ans = new int[n*n];
+        for(int a = 0; a < n; a++)
+            for(int b = 0; b < n; b++)
+                ans[a*n + b] = (a - d) + (b - d)*stride;
+        return ans;
+    }
+
+    /**
+     * Windows over an image for the tiles visited at once: a tile borrows one and releases it once
+     * done, so there are no more windows than threads visiting tiles.
+     */
+    static final class Windows {
+
+        private final Image image;
+        private final int pad;
+        private final BorderMode mode;
+        private final boolean levels;
+        private final Queue<PaddedImage> free = new ConcurrentLinkedQueue<>();
+
+        Windows(Image image, int pad, BorderMode mode, boolean levels){
+            this.image = image;
+            this.pad = pad;
+            this.mode = mode;
+            this.levels = levels;
+        }
+
+        /**
+         * @return a window filled with the tile [x0, x1) x [y0, y1)
+         */
+        PaddedImage borrow(int x0, int y0, int x1, int y1){
+            PaddedImage window = free.poll();
+            if(window == null)
+                window = new PaddedImage(image, pad, mode, levels);
+            return window.fill(x0, y0, x1, y1);
+        }
+
+        void release(PaddedImage window){
+            free.add(window);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package formats;
+
+import lombok.Getter;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * How the per pixel loops of an {@link Image} run: split in stripes of whole rows run by a
+ * {@link ForkJoinPool}, or in the calling thread.
+ * <p>
+ * Stripes only depend on the dimensions of the image, so reductions merged in stripe order give
+ * the same result with any pool.
+ */
+public final class Parallelism {
+
+    @FunctionalInterface
+    public interface StripeVisitor {
+        /**
+         * Visits the rows [y0, y1)
+         */
+        void visit(int y0, int y1);
+    }
+
+    /**
+     * Stripes hold at least this many pixels, smaller images are a single stripe.
+     */
+    public static final int MIN_STRIPE_PIXELS = 1 << 14;
+
+    public static final Parallelism SEQUENTIAL = new Parallelism(null);
+
+    private static volatile Parallelism global = new Parallelism(ForkJoinPool.commonPool());
+
+    /**
+     * The pool running the stripes, null if they run in the calling thread.
+     */
+    @Getter
+    private final ForkJoinPool pool;
+
+    private Parallelism(ForkJoinPool pool){
+        this.pool = pool;
+    }
+
+    public static Parallelism of(ForkJoinPool pool){
+        if(pool == null)
+            throw new IllegalArgumentException();
+        return new Parallelism(pool);
+    }
+
+    /**
+     * @return the parallelism of images without one of their own
+     */
+    public static Parallelism getGlobal(){
+        return global;
+    }
+
+    public static void setGlobal(Parallelism parallelism){
+        if(parallelism == null)
+            throw new IllegalArgumentException();
+        global = parallelism;
+    }
+
+    /**
+     * @return amount of stripes of an image of the given dimensions
+     */
+    public static int stripes(int width, int height){
+        return (height + stripeHeight(width) - 1) / stripeHeight(width);
+    }
+
+    private static int stripeHeight(int width){
+        return Math.max(1, MIN_STRIPE_PIXELS / Math.max(1, width));
+    }
+
+    /**
+     * Visits the stripes of rows of an image of the given dimensions, concurrently if there is a pool.
+     */
+    public void forEachStripe(int width, int height, StripeVisitor visitor){
+        int stripes = stripes(width, height), rows = stripeHeight(width);
+        if(pool == null || stripes <= 1){
+            for(int s = 0; s < stripes; s++)
+                visitor.visit(s*rows, Math.min(height, (s + 1)*rows));
+            return;
+        }
+        pool.invoke(new Stripes(visitor, 0, stripes, rows, height));
+    }
+
+    private static class Stripes extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final StripeVisitor visitor;
+        private final int from, to, rows, height;
+
+        Stripes(StripeVisitor visitor, int from, int to, int rows, int height){
+            this.visitor = visitor;
+            this.from = from;
+            this.to = to;
+            this.rows = rows;
+            this.height = height;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from == 1){
+                visitor.visit(from*rows, Math.min(height, (from + 1)*rows));
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Stripes(visitor, from, mid, rows, height), new Stripes(visitor, mid, to, rows, height));
+        }
+    }
+}
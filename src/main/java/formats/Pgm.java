@@ -1,6 +1,7 @@
 package formats;
 
 import formats.exceptions.FormatException;
+import formats.storage.BufferStorage;
 import utils.FileUtils;
 
 import java.io.FileInputStream;
@@ -9,7 +10,22 @@ import java.io.IOException;
 public class Pgm extends Image {
 
     public Pgm(String path) throws IOException {
-        super(0, 0, Encoding.GS,false);
+        this(path, SampleType.DOUBLE);
+    }
+
+    public Pgm(String path, SampleType sampleType) throws IOException {
+        this(path, sampleType, false);
+    }
+
+    /**
+     * @param mapped if true, the pixel payload is mapped from disk into 8 bit, off heap samples
+     */
+    public Pgm(String path, boolean mapped) throws IOException {
+        this(path, mapped ? SampleType.BYTE : SampleType.DOUBLE, mapped);
+    }
+
+    private Pgm(String path, SampleType sampleType, boolean mapped) throws IOException {
+        super(0, 0, Encoding.GS, sampleType, false);
 
         int depth;
 
@@ -30,13 +46,20 @@ public class Pgm extends Image {
         if(depth >= 256)
             throw new FormatException("Unsupported greyscale depth");
 
+        if(mapped){
+            long offset = inputStream.getChannel().position();
+            inputStream.close();
+            data = BufferStorage.map(path, offset, width*height*encoding.getBands());
+            return;
+        }
+
         byte[] bytes = new byte[width*height*encoding.getBands()];
         inputStream.read(bytes);
 
-        data = new double[width*height*encoding.getBands()];
+        data = sampleType.allocate(width*height*encoding.getBands());
 
         for(int i = 0; i < bytes.length; i++)
-             data[i] = byteToDouble(bytes[i]);
+             data.set(i, byteToDouble(bytes[i]));
     }
 
 }
@@ -0,0 +1,132 @@
+package formats;
+
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Rank statistics of the windows of a band of 8 bit levels, read off a histogram of the window that
+ * moves along the row as Huang's does: each step adds the samples entering the window and takes out
+ * those leaving it, a column each for square windows, so a step costs O(n). Masks weight the samples,
+ * each counted as many times as its weight, and steps only visit the taps whose weight changes.
+ * <p>
+ * Windows are cut by the borders. Levels are read from a {@link PaddedImage} filled with the tile
+ * filtered and a halo of n/2. A filter keeps its histogram between calls, so each thread needs its
+ * own.
+ */
+final class RankFilter {
+
+    private static final int LEVELS = 256, COARSE = 16, SHIFT = 4;
+
+    private final int width, height;
+    /**
+     * The ranks averaged in windows of each count of samples, the lowest one first
+     */
+    private final IntUnaryOperator first, last;
+    /**
+     * x, y offsets and weights of the taps of a window, and the changes of weight from a window to
+     * the next one along the row, offsets from the centre of that one
+     */
+    private final int[] taps, steps;
+    private final int[] fine = new int[LEVELS], coarse = new int[COARSE], sums = new int[COARSE];
+    private int total;
+
+    RankFilter(int width, int height, int[][] mask, IntUnaryOperator first, IntUnaryOperator last){
+        int n = mask.length, d = n/2;
+        this.width = width;
+        this.height = height;
+        this.first = first;
+        this.last = last;
+        int[] taps = new int[3*n*n], steps = new int[3*(n + 1)*n];
+        int t = 0, s = 0;
+        for(int b = 0; b < n; b++){
+            for(int a = 0; a <= n; a++){
+                int weight = a < n ? mask[a][b] : 0, previous = a > 0 ? mask[a - 1][b] : 0;
+                if(weight < 0)
+                    throw new IllegalArgumentException();
+                if(weight != 0){
+                    taps[t++] = a - d;
+                    taps[t++] = b - d;
+                    taps[t++] = weight;
+                }
+                if(weight != previous){
+                    steps[s++] = a - d - 1;
+                    steps[s++] = b - d;
+                    steps[s++] = previous - weight;
+                }
+            }
+        }
+        this.taps = Arrays.copyOf(taps, t);
+        this.steps = Arrays.copyOf(steps, s);
+    }
+
+    /**
+     * Writes the means of the ranks of the windows of band c of the tile [x0, x1) x [y0, y1) the
+     * window is filled with to out, the one of (x, y) at (x - x0 + (y - y0)*(x1 - x0))
+     */
+    void filter(PaddedImage window, int c, int x0, int y0, int x1, int y1, double[] out){
+        int[] band = window.levels[c];
+        for(int y = y0; y < y1; y++){
+            Arrays.fill(fine, 0);
+            Arrays.fill(coarse, 0);
+            Arrays.fill(sums, 0);
+            total = 0;
+            add(window, band, taps, x0, y);
+            out[(y - y0)*(x1 - x0)] = value();
+            for(int x = x0 + 1; x < x1; x++){
+                add(window, band, steps, x, y);
+                out[x - x0 + (y - y0)*(x1 - x0)] = value();
+            }
+        }
+    }
+
+    private void add(PaddedImage window, int[] band, int[] taps, int x, int y){
+        for(int k = 0; k < taps.length; k += 3){
+            int i = x + taps[k], j = y + taps[k + 1];
+            if(i < 0 || j < 0 || i >= width || j >= height)
+                continue;
+            int weight = taps[k + 2], level = band[window.index(i, j)];
+            fine[level] += weight;
+            coarse[level >> SHIFT] += weight;
+            sums[level >> SHIFT] += weight*level;
+            total += weight;
+        }
+    }
+
+    private double value(){
+        int from = first.applyAsInt(total), to = last.applyAsInt(total);
+        if(from == to)
+            return level(from);
+        return (double) (sum(to + 1) - sum(from))/(to + 1 - from);
+    }
+
+    /**
+     * @return the level of the given rank in the window
+     */
+    private int level(int rank){
+        int k = 0, below = 0;
+        while(below + coarse[k] <= rank)
+            below += coarse[k++];
+        int level = k << SHIFT;
+        while(below + fine[level] <= rank)
+            below += fine[level++];
+        return level;
+    }
+
+    /**
+     * @return the sum of the count least samples of the window
+     */
+    private long sum(int count){
+        int k = 0, below = 0;
+        long ans = 0;
+        while(k < COARSE && below + coarse[k] <= count){
+            below += coarse[k];
+            ans += sums[k++];
+        }
+        for(int level = k << SHIFT; below < count; level++){
+            int taken = Math.min(fine[level], count - below);
+            below += taken;
+            ans += (long) taken*level;
+        }
+        return ans;
+    }
+}
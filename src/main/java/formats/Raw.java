@@ -1,4 +1,5 @@
 package formats;
+import formats.storage.BufferStorage;
 import org.apache.commons.io.IOUtils;
 
 import java.io.FileInputStream;
@@ -8,10 +9,29 @@ import java.io.IOException;
 public class Raw extends Image{
 
     public Raw(int width, int height, Encoding encoding, String path) throws IOException {
-        super(width, height, encoding, true);
+        this(width, height, encoding, SampleType.DOUBLE, path);
+    }
+
+    /**
+     * Maps the file into 8 bit, off heap samples instead of reading it.
+     */
+    public Raw(int width, int height, Encoding encoding, String path, boolean mapped) throws IOException {
+        super(width, height, encoding, mapped ? SampleType.BYTE : SampleType.DOUBLE, !mapped);
+        if(mapped)
+            data = BufferStorage.map(path, 0, width*height*encoding.getBands());
+        else
+            load(path);
+    }
+
+    public Raw(int width, int height, Encoding encoding, SampleType sampleType, String path) throws IOException {
+        super(width, height, encoding, sampleType, true);
+        load(path);
+    }
+
+    private void load(String path) throws IOException {
         byte[] bytes = IOUtils.toByteArray(new FileInputStream(path));
-        for(int i = 0; i < data.length; i++) {
-            data[i] = byteToDouble(bytes[i]);
+        for(int i = 0; i < data.length(); i++) {
+            data.set(i, byteToDouble(bytes[i]));
         }
     }
 
@@ -0,0 +1,127 @@
+package formats;
+
+/**
+ * Deriche's recursive approximation of the Gaussian filter, and of its first derivative, whose cost
+ * doesn't depend on sigma: a causal and an anticausal fourth order pass along each line.
+ * <p>
+ * Lines wrap around, as convolutions do. Each pass starts far enough before the line for its state to
+ * forget where it started.
+ */
+final class RecursiveGaussian {
+
+    /**
+     * The fit doesn't approximate smaller sigmas
+     */
+    static final double MIN_SIGMA = 0.5;
+
+    private final double n0, n1, n2, n3, m1, m2, m3, m4, d1, d2, d3, d4;
+    /**
+     * Gains of the passes on constant lines, and the scale making their sum 1
+     */
+    private final double causalGain, anticausalGain, scale;
+    /**
+     * Samples run before a line
+     */
+    private final int warmUp;
+
+    RecursiveGaussian(double sigma){
+        if(sigma < MIN_SIGMA)
+            throw new IllegalArgumentException();
+        // Deriche's fit of exp(-x^2/2) for x >= 0, the sum of (a cos(w x) + c sin(w x)) exp(-b x) for two
+        // terms. Each term is the real part of (a - ic) p^x, p being exp(-b + iw): a pair of conjugate poles.
+        double[] a = {1.680, -0.6803}, c = {3.735, -0.2598}, b = {1.783, 1.723}, w = {0.6318, 1.997};
+        double[] pRe = new double[4], pIm = new double[4], rRe = new double[4], rIm = new double[4];
+        for(int k = 0; k < 2; k++){
+            double magnitude = Math.exp(-b[k]/sigma), angle = w[k]/sigma;
+            pRe[2*k] = pRe[2*k + 1] = magnitude*Math.cos(angle);
+            pIm[2*k] = magnitude*Math.sin(angle);
+            pIm[2*k + 1] = -pIm[2*k];
+            rRe[2*k] = rRe[2*k + 1] = a[k]/2;
+            rIm[2*k] = -c[k]/2;
+            rIm[2*k + 1] = c[k]/2;
+        }
+        // Causal samples h(n) = sum of r p^n for n >= 0: N(u)/D(u) with D the product of (1 - p u).
+        // Anticausal ones h(n) for n >= 1 ahead: M(u)/D(u), with the terms r p u of M.
+        double[][] d = {{1}, {0}}, n = {new double[4], new double[4]}, m = {new double[5], new double[5]};
+        for(int j = 0; j < 4; j++)
+            d = timesRoot(d, pRe[j], pIm[j]);
+        for(int j = 0; j < 4; j++){
+            double[][] others = {{1}, {0}};
+            for(int i = 0; i < 4; i++)
+                if(i != j)
+                    others = timesRoot(others, pRe[i], pIm[i]);
+            double rpRe = rRe[j]*pRe[j] - rIm[j]*pIm[j], rpIm = rRe[j]*pIm[j] + rIm[j]*pRe[j];
+            for(int k = 0; k < 4; k++){
+                n[0][k] += rRe[j]*others[0][k] - rIm[j]*others[1][k];
+                m[0][k + 1] += rpRe*others[0][k] - rpIm*others[1][k];
+            }
+        }
+        n0 = n[0][0]; n1 = n[0][1]; n2 = n[0][2]; n3 = n[0][3];
+        m1 = m[0][1]; m2 = m[0][2]; m3 = m[0][3]; m4 = m[0][4];
+        d1 = d[0][1]; d2 = d[0][2]; d3 = d[0][3]; d4 = d[0][4];
+        double denominator = 1 + d1 + d2 + d3 + d4;
+        causalGain = (n0 + n1 + n2 + n3)/denominator;
+        anticausalGain = (m1 + m2 + m3 + m4)/denominator;
+        scale = 1/(causalGain + anticausalGain);
+        // The slowest pole decays by exp(-1.723) every sigma
+        warmUp = (int) Math.ceil(10*sigma) + 4;
+    }
+
+    /**
+     * @return polynomial times (1 - p u), coefficients by power of u, real parts then imaginary ones
+     */
+    private static double[][] timesRoot(double[][] polynomial, double pRe, double pIm){
+        int length = polynomial[0].length;
+        double[][] ans = new double[2][length + 1];
+        for(int k = 0; k <= length; k++){
+            double re = k < length ? polynomial[0][k] : 0, im = k < length ? polynomial[1][k] : 0;
+            if(k > 0){
+                re -= pRe*polynomial[0][k - 1] - pIm*polynomial[1][k - 1];
+                im -= pRe*polynomial[1][k - 1] + pIm*polynomial[0][k - 1];
+            }
+            ans[0][k] = re;
+            ans[1][k] = im;
+        }
+        return ans;
+    }
+
+    /**
+     * Filters a line in place.
+     * @param line samples from..from + (length - 1)*step
+     * @param derivative whether to differentiate the line, by central differences, before smoothing it
+     * @param scratch at least 2*length elements
+     */
+    void filter(double[] line, int from, int step, int length, boolean derivative, double[] scratch){
+        double[] x = scratch;
+        int causal = length;
+        for(int k = 0; k < length; k++){
+            if(derivative)
+                x[k] = (line[from + ((k + 1) % length)*step] - line[from + ((k + length - 1) % length)*step])/2;
+            else
+                x[k] = line[from + k*step];
+        }
+        // Both passes start with the state of a constant line
+        double x1 = x[Math.floorMod(-warmUp, length)], x2 = x1, x3 = x1;
+        double y1 = x1*causalGain, y2 = y1, y3 = y1, y4 = y1;
+        for(int k = -warmUp; k < length; k++){
+            double x0 = x[Math.floorMod(k, length)];
+            double y = n0*x0 + n1*x1 + n2*x2 + n3*x3 - d1*y1 - d2*y2 - d3*y3 - d4*y4;
+            x3 = x2; x2 = x1; x1 = x0;
+            y4 = y3; y3 = y2; y2 = y1; y1 = y;
+            if(k >= 0)
+                scratch[causal + k] = y;
+        }
+        x1 = x[Math.floorMod(length + warmUp, length)];
+        x2 = x3 = x1;
+        double x4 = x1;
+        y1 = x1*anticausalGain;
+        y2 = y3 = y4 = y1;
+        for(int k = length - 1 + warmUp; k >= 0; k--){
+            double y = m1*x1 + m2*x2 + m3*x3 + m4*x4 - d1*y1 - d2*y2 - d3*y3 - d4*y4;
+            x4 = x3; x3 = x2; x2 = x1; x1 = x[Math.floorMod(k, length)];
+            y4 = y3; y3 = y2; y2 = y1; y1 = y;
+            if(k < length)
+                line[from + k*step] = (scratch[causal + k] + y)*scale;
+        }
+    }
+}
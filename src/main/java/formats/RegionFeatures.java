@@ -19,34 +19,19 @@ public class RegionFeatures {
         ans.height = img.getHeight();
         ans.phi = new int[img.getWidth() * img.getHeight()];
 
-        ans.objAvg = new Vector3D();
-        ans.backAvg = new Vector3D();
-
         ans.lin = new HashSet<>();
         ans.lout = new HashSet<>();
 
-        int objCount = 0, backCount = 0;
-
         for(int i = 0; i < ans.width; i++){
             for(int j = 0; j < ans.height; j++){
 
                 if(i < x0-1 || i > x1+1 || j < y0-1 || j > y1+1){
                     //Outside of image
                     ans.setPhi(i, j, 3);
-                    backCount ++;
-
-                    ans.backAvg.addP(Vector3D.X.scl(img.getComponent(i, j,0)));
-                    ans.backAvg.addP(Vector3D.Y.scl(img.getComponent(i, j,1)));
-                    ans.backAvg.addP(Vector3D.Z.scl(img.getComponent(i, j,2)));
 
                 } else if(i > x0 && i < x1 && j > y0 && j < y1){
                     //inside of object
                     ans.setPhi(i, j, -3);
-                    objCount ++;
-
-                    ans.objAvg.addP(Vector3D.X.scl(img.getComponent(i, j,0)));
-                    ans.objAvg.addP(Vector3D.Y.scl(img.getComponent(i, j,1)));
-                    ans.objAvg.addP(Vector3D.Z.scl(img.getComponent(i, j,2)));
 
                 } else if((i == x0 && j >= y0 && j <= y1) || (i == x1 && j >= y0 && j <= y1) ||
                           (j == y0 && i >= x0 && i <= x1) || (j == y1 && i >= x0 && i <= x1 )){
@@ -64,12 +49,38 @@ public class RegionFeatures {
             }
         }
 
+        // The object is inside the border, the background outside of the band around it
+        IntegralImage integral = img.integralImage();
+        int[] object = clip(ans, x0 + 1, y0 + 1, x1, y1), around = clip(ans, x0 - 1, y0 - 1, x1 + 2, y1 + 2);
+        int objCount = area(object), backCount = ans.width*ans.height - area(around);
+        ans.objAvg = new Vector3D(sum(integral, 0, object), sum(integral, 1, object), sum(integral, 2, object));
+        ans.backAvg = new Vector3D(integral.sum(0, 0, 0, ans.width, ans.height) - sum(integral, 0, around),
+                                   integral.sum(1, 0, 0, ans.width, ans.height) - sum(integral, 1, around),
+                                   integral.sum(2, 0, 0, ans.width, ans.height) - sum(integral, 2, around));
+
         ans.objAvg.sclP(1.0/objCount);
         ans.backAvg.sclP(1.0/backCount);
 
         return ans;
     }
 
+    /**
+     * @return the box [x0, x1) x [y0, y1) inside the image, empty if they don't overlap
+     */
+    private static int[] clip(RegionFeatures features, int x0, int y0, int x1, int y1){
+        x0 = Math.max(0, x0);
+        y0 = Math.max(0, y0);
+        return new int[]{x0, y0, Math.max(x0, Math.min(features.width, x1)), Math.max(y0, Math.min(features.height, y1))};
+    }
+
+    private static int area(int[] box){
+        return (box[2] - box[0])*(box[3] - box[1]);
+    }
+
+    private static double sum(IntegralImage integral, int component, int[] box){
+        return area(box) == 0 ? 0 : integral.sum(component, box[0], box[1], box[2], box[3]);
+    }
+
 
     private int[] phi;
     private Vector3D objAvg, backAvg;
@@ -82,6 +93,13 @@ public class RegionFeatures {
         return phi[x + y*width];
     }
 
+    /**
+     * @return the level of every pixel, (x, y) at x + y*width
+     */
+    int[] phis(){
+        return phi;
+    }
+
     void setPhi(int x, int y, int val){
         if(isOutOfBounds(x, y))
             throw new ArrayIndexOutOfBoundsException();
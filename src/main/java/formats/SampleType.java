@@ -0,0 +1,50 @@
+package formats;
+
+import formats.storage.ByteStorage;
+import formats.storage.DoubleStorage;
+import formats.storage.FloatStorage;
+import formats.storage.PixelStorage;
+import formats.storage.ShortStorage;
+import lombok.Getter;
+
+/**
+ * Precision in which the samples of an {@link Image} are kept in memory.
+ */
+public enum SampleType {
+
+    BYTE(1, true), SHORT(2, true), FLOAT(4, false), DOUBLE(8, false);
+
+    SampleType(int bytes, boolean integral){
+        this.bytes = bytes;
+        this.integral = integral;
+    }
+
+    @Getter
+    private int bytes;
+
+    @Getter
+    private boolean integral;
+
+    public PixelStorage allocate(int length){
+        switch (this){
+            case BYTE:
+                return new ByteStorage(length);
+            case SHORT:
+                return new ShortStorage(length);
+            case FLOAT:
+                return new FloatStorage(length);
+            default:
+                return new DoubleStorage(length);
+        }
+    }
+
+    /**
+     * Integral types can't hold unrounded or out of range values, so
+     * intermediate results computed from them are kept as floats.
+     * @return the type in which intermediate results should be stored
+     */
+    public SampleType intermediate(){
+        return integral ? FLOAT : this;
+    }
+
+}
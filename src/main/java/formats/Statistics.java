@@ -0,0 +1,64 @@
+package formats;
+
+import java.util.function.Supplier;
+
+/**
+ * Statistics of the samples of an image while they stay at one version, each computed at most once.
+ * Images sharing their samples share the statistics too, until one of them is written.
+ */
+final class Statistics {
+
+    /**
+     * Version of the samples these statistics describe.
+     */
+    final long version;
+
+    private final double[][] maxAndMins, meansAndStds;
+    private double[] avg;
+    private long[][] histograms;
+    private IntegralImage integralImage;
+
+    Statistics(long version, int bands){
+        this.version = version;
+        maxAndMins = new double[bands][];
+        meansAndStds = new double[bands][];
+    }
+
+    /**
+     * @return the level counts of every band, not copied
+     */
+    synchronized long[][] histograms(Supplier<long[][]> compute){
+        if(histograms == null)
+            histograms = compute.get();
+        return histograms;
+    }
+
+    synchronized IntegralImage integralImage(Supplier<IntegralImage> compute){
+        if(integralImage == null)
+            integralImage = compute.get();
+        return integralImage;
+    }
+
+    double[] maxAndMin(int component, Supplier<double[]> compute){
+        return get(maxAndMins, component, compute);
+    }
+
+    double[] meanAndStd(int component, Supplier<double[]> compute){
+        return get(meansAndStds, component, compute);
+    }
+
+    synchronized double[] avg(Supplier<double[]> compute){
+        if(avg == null)
+            avg = compute.get();
+        return avg.clone();
+    }
+
+    /**
+     * @return a copy of the statistic of component, computed if it wasn't yet
+     */
+    private synchronized double[] get(double[][] statistic, int component, Supplier<double[]> compute){
+        if(statistic[component] == null)
+            statistic[component] = compute.get();
+        return statistic[component].clone();
+    }
+}
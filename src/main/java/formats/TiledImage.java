@@ -0,0 +1,90 @@
+package formats;
+
+import formats.storage.PixelStorage;
+import formats.storage.TiledStorage;
+import lombok.Getter;
+
+/**
+ * Image whose raster is split in tiles kept in a bounded cache, see {@link TiledStorage}.
+ * Operations visit it tile by tile and build tiled intermediate results, so the memory they
+ * use is bounded by the cache of each image instead of by its size.
+ */
+public class TiledImage extends Image {
+
+    public static final int DEFAULT_TILE_SIZE = 256;
+    public static final int DEFAULT_CACHED_TILES = 64;
+
+    @Getter
+    private int tileSize, cachedTiles;
+
+    public TiledImage(int width, int height, Encoding encoding, SampleType sampleType){
+        this(width, height, encoding, sampleType, DEFAULT_TILE_SIZE, DEFAULT_CACHED_TILES);
+    }
+
+    public TiledImage(int width, int height, Encoding encoding, SampleType sampleType, int tileSize, int cachedTiles){
+        super(width, height, encoding, sampleType, false);
+        this.tileSize = tileSize;
+        this.cachedTiles = cachedTiles;
+        this.data = allocate(sampleType, encoding.getBands());
+    }
+
+    /**
+     * Tiles of an 8 bit raw file, read when first accessed.
+     */
+    public TiledImage(int width, int height, Encoding encoding, SampleType sampleType, String path,
+                      int tileSize, int cachedTiles){
+        super(width, height, encoding, sampleType, false);
+        this.tileSize = tileSize;
+        this.cachedTiles = cachedTiles;
+        this.data = new TiledStorage(width, height, encoding.getBands(), sampleType, tileSize, cachedTiles,
+                TiledStorage.rawLoader(path, width, height, encoding.getBands(), tileSize));
+    }
+
+    @Override
+    Image blank(Encoding encoding, SampleType sampleType) {
+        return new TiledImage(width, height, encoding, sampleType, tileSize, cachedTiles);
+    }
+
+    @Override
+    PixelStorage allocate(SampleType sampleType, int bands) {
+        return new TiledStorage(width, height, bands, sampleType, tileSize, cachedTiles);
+    }
+
+    /**
+     * Visits the tiles one at a time, row by row, so the tile cache isn't thrashed by concurrent stripes.
+     */
+    @Override
+    public void forEachTile(TileVisitor visitor) {
+        for(int y0 = 0; y0 < height; y0 += tileSize)
+            for(int x0 = 0; x0 < width; x0 += tileSize)
+                visitor.visit(x0, y0, Math.min(x0 + tileSize, width), Math.min(y0 + tileSize, height));
+    }
+
+    @Override
+    int tileWidth() {
+        return Math.min(tileSize, width);
+    }
+
+    @Override
+    boolean isTiled() {
+        return true;
+    }
+
+    @Override
+    void forEachTile(int rows, TileVisitor visitor) {
+        forEachTile(visitor);
+    }
+
+    @Override
+    void forEachTileRow(TileVisitor visitor) {
+        for(int y0 = 0; y0 < height; y0 += tileSize)
+            visitor.visit(0, y0, width, Math.min(y0 + tileSize, height));
+    }
+
+    @Override
+    void forEachTileColumn(TileVisitor visitor) {
+        for(int x0 = 0; x0 < width; x0 += tileSize)
+            visitor.visit(x0, 0, Math.min(x0 + tileSize, width), height);
+    }
+
+}
@@ -0,0 +1,137 @@
+package formats.storage;
+
+import formats.Image;
+import formats.SampleType;
+import formats.exceptions.FormatException;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 8 bits per sample kept outside of the Java heap, either in a direct buffer or
+ * mapped straight from a file.
+ */
+public class BufferStorage implements PixelStorage {
+
+    private volatile ByteBuffer buffer;
+
+    public BufferStorage(ByteBuffer buffer){
+        this.buffer = buffer;
+    }
+
+    public static BufferStorage allocateDirect(int length){
+        return new BufferStorage(ByteBuffer.allocateDirect(length));
+    }
+
+    /**
+     * Maps length bytes of a file starting at offset. The mapping is read only:
+     * the first write moves the samples to a direct buffer, so the file is never modified.
+     * @param path the file
+     * @param offset position of the first sample in the file
+     * @param length amount of samples
+     * @return the mapped storage
+     * @throws IOException
+     */
+    public static BufferStorage map(String path, long offset, int length) throws IOException {
+        try(RandomAccessFile file = new RandomAccessFile(path, "r");
+            FileChannel channel = file.getChannel()){
+            if(channel.size() < offset + length)
+                throw new FormatException("File is shorter than the expected pixel payload");
+            return new BufferStorage(channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+        }
+    }
+
+    @Override
+    public double get(int index) {
+        return Image.byteToDouble(buffer.get(index));
+    }
+
+    @Override
+    public int level(int index) {
+        return Image.M & buffer.get(index);
+    }
+
+    @Override
+    public void set(int index, double value) {
+        writable().put(index, Image.doubleToByte(value));
+    }
+
+    /**
+     * Pixels may be written concurrently, so only one of them moves the samples out of a mapping.
+     */
+    private ByteBuffer writable(){
+        ByteBuffer ans = buffer;
+        if(!ans.isReadOnly())
+            return ans;
+        synchronized (this){
+            if(buffer.isReadOnly())
+                buffer = directCopy();
+            return buffer;
+        }
+    }
+
+    @Override
+    public void map(byte[] table, int from, int step) {
+        ByteBuffer buffer = writable();
+        for(int i = from; i < buffer.limit(); i += step)
+            buffer.put(i, table[Image.M & buffer.get(i)]);
+    }
+
+    @Override
+    public void count(long[][] counts, int from, int to) {
+        ByteBuffer buffer = this.buffer;
+        int bands = counts.length;
+        for(int i = from; i < to; i += bands)
+            for(int c = 0; c < bands; c++)
+                counts[c][Image.M & buffer.get(i + c)]++;
+    }
+
+    @Override
+    public int length() {
+        return buffer.limit();
+    }
+
+    @Override
+    public SampleType getSampleType() {
+        return SampleType.BYTE;
+    }
+
+    /**
+     *
+     * @return a copy in a new direct buffer, the samples stay off heap
+     */
+    @Override
+    public PixelStorage copy() {
+        return new BufferStorage(directCopy());
+    }
+
+    private ByteBuffer directCopy(){
+        ByteBuffer src = buffer.duplicate();
+        src.clear();
+        ByteBuffer ans = ByteBuffer.allocateDirect(src.limit());
+        ans.put(src);
+        ans.clear();
+        return ans;
+    }
+
+    @Override
+    public void write(ByteBuffer out) {
+        ByteBuffer src = buffer.duplicate();
+        src.clear();
+        out.put(src);
+    }
+
+    @Override
+    public void read(ByteBuffer in) {
+        if(buffer.isReadOnly())
+            buffer = ByteBuffer.allocateDirect(buffer.limit());
+        ByteBuffer src = in.duplicate();
+        src.limit(src.position() + buffer.limit());
+        ByteBuffer dst = buffer.duplicate();
+        dst.clear();
+        dst.put(src);
+        in.position(src.position());
+    }
+}
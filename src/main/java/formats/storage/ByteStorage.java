@@ -0,0 +1,82 @@
+package formats.storage;
+
+import formats.Image;
+import formats.SampleType;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 8 bits per sample, with the same quantisation as {@link Image#round(double)}.
+ */
+public class ByteStorage implements PixelStorage {
+
+    private byte[] data;
+
+    public ByteStorage(int length){
+        this(new byte[length]);
+    }
+
+    public ByteStorage(byte[] data){
+        this.data = data;
+    }
+
+    @Override
+    public double get(int index) {
+        return Image.byteToDouble(data[index]);
+    }
+
+    @Override
+    public int level(int index) {
+        return Image.M & data[index];
+    }
+
+    @Override
+    public void set(int index, double value) {
+        data[index] = Image.doubleToByte(value);
+    }
+
+    @Override
+    public int length() {
+        return data.length;
+    }
+
+    @Override
+    public SampleType getSampleType() {
+        return SampleType.BYTE;
+    }
+
+    @Override
+    public void map(byte[] table, int from, int step) {
+        for(int i = from; i < data.length; i += step)
+            data[i] = table[Image.M & data[i]];
+    }
+
+    @Override
+    public void count(long[][] counts, int from, int to) {
+        int bands = counts.length;
+        for(int i = from; i < to; i += bands)
+            for(int c = 0; c < bands; c++)
+                counts[c][Image.M & data[i + c]]++;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(data, (byte) 0);
+    }
+
+    @Override
+    public PixelStorage copy() {
+        return new ByteStorage(data.clone());
+    }
+
+    @Override
+    public void write(ByteBuffer out) {
+        out.put(data);
+    }
+
+    @Override
+    public void read(ByteBuffer in) {
+        in.get(data);
+    }
+}
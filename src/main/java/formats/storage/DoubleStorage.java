@@ -0,0 +1,61 @@
+package formats.storage;
+
+import formats.SampleType;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class DoubleStorage implements PixelStorage {
+
+    private double[] data;
+
+    public DoubleStorage(int length){
+        this(new double[length]);
+    }
+
+    public DoubleStorage(double[] data){
+        this.data = data;
+    }
+
+    @Override
+    public double get(int index) {
+        return data[index];
+    }
+
+    @Override
+    public void set(int index, double value) {
+        data[index] = value;
+    }
+
+    @Override
+    public int length() {
+        return data.length;
+    }
+
+    @Override
+    public SampleType getSampleType() {
+        return SampleType.DOUBLE;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(data, 0.0);
+    }
+
+    @Override
+    public PixelStorage copy() {
+        return new DoubleStorage(data.clone());
+    }
+
+    @Override
+    public void write(ByteBuffer out) {
+        out.asDoubleBuffer().put(data);
+        out.position(out.position() + data.length*8);
+    }
+
+    @Override
+    public void read(ByteBuffer in) {
+        in.asDoubleBuffer().get(data);
+        in.position(in.position() + data.length*8);
+    }
+}
@@ -0,0 +1,66 @@
+package formats.storage;
+
+import formats.Image;
+import formats.SampleType;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Single precision samples. Values are kept in 8 bit level units, so
+ * rounded samples are read back exactly while unrounded ones keep float precision.
+ */
+public class FloatStorage implements PixelStorage {
+
+    private float[] data;
+
+    public FloatStorage(int length){
+        this(new float[length]);
+    }
+
+    public FloatStorage(float[] data){
+        this.data = data;
+    }
+
+    @Override
+    public double get(int index) {
+        return data[index] * Image.U;
+    }
+
+    @Override
+    public void set(int index, double value) {
+        data[index] = (float) (value / Image.U);
+    }
+
+    @Override
+    public int length() {
+        return data.length;
+    }
+
+    @Override
+    public SampleType getSampleType() {
+        return SampleType.FLOAT;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(data, 0f);
+    }
+
+    @Override
+    public PixelStorage copy() {
+        return new FloatStorage(data.clone());
+    }
+
+    @Override
+    public void write(ByteBuffer out) {
+        out.asFloatBuffer().put(data);
+        out.position(out.position() + data.length*4);
+    }
+
+    @Override
+    public void read(ByteBuffer in) {
+        in.asFloatBuffer().get(data);
+        in.position(in.position() + data.length*4);
+    }
+}
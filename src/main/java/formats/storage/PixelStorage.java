@@ -0,0 +1,91 @@
+package formats.storage;
+
+import formats.Image;
+import formats.SampleType;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flat, band interleaved sample buffer backing a {@link formats.Image}.
+ * Samples are exchanged as doubles in the [0, 1] range used by {@link formats.Image},
+ * each implementation decides how many bits it keeps of them.
+ */
+public interface PixelStorage {
+
+    /**
+     * @param index flat index, as computed by {@link formats.Image}
+     * @return the sample at index
+     */
+    double get(int index);
+
+    /**
+     * Stores value at index, quantised to the precision of this storage.
+     * @param index flat index, as computed by {@link formats.Image}
+     * @param value the sample
+     */
+    void set(int index, double value);
+
+    /**
+     *
+     * @return amount of samples in this {@link PixelStorage}
+     */
+    int length();
+
+    SampleType getSampleType();
+
+    /**
+     * @return the 8 bit level of the sample at index
+     */
+    default int level(int index){
+        return Image.M & Image.doubleToByte(get(index));
+    }
+
+    /**
+     * Sets every sample to 0.
+     */
+    default void clear(){
+        for(int i = 0; i < length(); i++)
+            set(i, 0);
+    }
+
+    /**
+     * Replaces every step-th sample, starting at index from, with the level table holds for
+     * its 8 bit level. Meant for storages of 8 bit samples.
+     * @param table output level of each input level
+     */
+    default void map(byte[] table, int from, int step){
+        for(int i = from; i < length(); i += step)
+            set(i, Image.byteToDouble(table[Image.M & Image.doubleToByte(get(i))]));
+    }
+
+    /**
+     * Counts the 8 bit level of every sample in [from, to), whose bands are interleaved.
+     * @param counts one row of 256 counters per band, the one of the sample at from first
+     */
+    default void count(long[][] counts, int from, int to){
+        int bands = counts.length;
+        for(int i = from; i < to; i += bands)
+            for(int c = 0; c < bands; c++)
+                counts[c][Image.M & Image.doubleToByte(get(i + c))]++;
+    }
+
+    /**
+     *
+     * @return a deep copy of this {@link PixelStorage}
+     */
+    PixelStorage copy();
+
+    /**
+     * Puts every sample into out, in index order and in the binary form of this storage's
+     * {@link SampleType}.
+     * @param out a buffer with at least length() * getSampleType().getBytes() bytes remaining
+     */
+    void write(ByteBuffer out);
+
+    /**
+     * Replaces every sample with the ones in in, as put by {@link #write(ByteBuffer)}.
+     * @param in a buffer with at least length() * getSampleType().getBytes() bytes remaining
+     */
+    void read(ByteBuffer in);
+
+}
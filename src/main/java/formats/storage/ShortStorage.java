@@ -0,0 +1,70 @@
+package formats.storage;
+
+import formats.Image;
+import formats.SampleType;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 16 bits per sample over [0, 1]. Values outside that range are clamped.
+ * 8 bit levels are multiples of 257, so rounded samples are read back exactly.
+ */
+public class ShortStorage implements PixelStorage {
+
+    private static final int MAX = 0xFFFF;
+    private static final double STEP = MAX / Image.M;
+
+    private short[] data;
+
+    public ShortStorage(int length){
+        this(new short[length]);
+    }
+
+    public ShortStorage(short[] data){
+        this.data = data;
+    }
+
+    @Override
+    public double get(int index) {
+        return ((MAX & data[index]) / STEP) * Image.U;
+    }
+
+    @Override
+    public void set(int index, double value) {
+        long level = Math.round(value * MAX);
+        data[index] = (short) Math.max(0, Math.min(MAX, level));
+    }
+
+    @Override
+    public int length() {
+        return data.length;
+    }
+
+    @Override
+    public SampleType getSampleType() {
+        return SampleType.SHORT;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(data, (short) 0);
+    }
+
+    @Override
+    public PixelStorage copy() {
+        return new ShortStorage(data.clone());
+    }
+
+    @Override
+    public void write(ByteBuffer out) {
+        out.asShortBuffer().put(data);
+        out.position(out.position() + data.length*2);
+    }
+
+    @Override
+    public void read(ByteBuffer in) {
+        in.asShortBuffer().get(data);
+        in.position(in.position() + data.length*2);
+    }
+}
@@ -0,0 +1,165 @@
+package formats.storage;
+
+import formats.SampleType;
+import lombok.Getter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps released storages to hand them out again to later requests of the same sample type and
+ * length, so temporary images of the same size don't have to be allocated over and over.
+ * Borrowed storages are always cleared.
+ * <p>
+ * A {@link Scope} opened in a thread collects the storages borrowed by that thread until it is closed,
+ * and releases all of them but the ones kept.
+ */
+public class StoragePool {
+
+    public static final long DEFAULT_CAPACITY = 64L << 20;
+
+    private static final StoragePool SHARED = new StoragePool(DEFAULT_CAPACITY);
+
+    public static StoragePool shared(){
+        return SHARED;
+    }
+
+    /**
+     * Storages borrowed while the scope is open in its thread. Images holding them must not be used
+     * after closing it, unless their samples were kept.
+     */
+    public class Scope implements AutoCloseable {
+
+        private final Set<PixelStorage> borrowed = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        private Scope(){
+        }
+
+        @Override
+        public void close() {
+            List<Scope> open = scopes.get();
+            if(open.isEmpty() || open.get(open.size() - 1) != this)
+                throw new IllegalStateException("Scopes must be closed in the reverse order they were opened");
+            open.remove(open.size() - 1);
+            for(PixelStorage storage : borrowed)
+                release(storage);
+            borrowed.clear();
+        }
+    }
+
+    /**
+     * Maximum amount of bytes kept for reuse, further releases are left to the garbage collector.
+     */
+    @Getter
+    private final long capacity;
+    @Getter
+    private long retainedBytes;
+
+    private final Map<SampleType, Map<Integer, Deque<PixelStorage>>> free = new EnumMap<>(SampleType.class);
+    private final Set<PixelStorage> pooled = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final ThreadLocal<List<Scope>> scopes = ThreadLocal.withInitial(ArrayList::new);
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    public StoragePool(long capacity){
+        if(capacity < 0)
+            throw new IllegalArgumentException();
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return a cleared storage, either a released one or a new one
+     */
+    public PixelStorage borrow(SampleType sampleType, int length){
+        PixelStorage storage = poll(sampleType, length);
+        if(storage == null){
+            misses.incrementAndGet();
+            storage = sampleType.allocate(length);
+        } else {
+            hits.incrementAndGet();
+            storage.clear();
+        }
+        List<Scope> open = scopes.get();
+        if(!open.isEmpty())
+            open.get(open.size() - 1).borrowed.add(storage);
+        return storage;
+    }
+
+    /**
+     * Makes storage available to later borrowers. It must not be used afterwards.
+     */
+    public void release(PixelStorage storage){
+        for(Scope scope : scopes.get())
+            scope.borrowed.remove(storage);
+        long bytes = (long)storage.length()*storage.getSampleType().getBytes();
+        synchronized (this){
+            if(retainedBytes + bytes > capacity || !pooled.add(storage))
+                return;
+            free.computeIfAbsent(storage.getSampleType(), t -> new HashMap<>())
+                    .computeIfAbsent(storage.length(), l -> new ArrayDeque<>())
+                    .push(storage);
+            retainedBytes += bytes;
+        }
+    }
+
+    /**
+     * Keeps storage from being released when the scopes open in this thread close.
+     */
+    public void keep(PixelStorage storage){
+        for(Scope scope : scopes.get())
+            scope.borrowed.remove(storage);
+    }
+
+    public Scope open(){
+        Scope scope = new Scope();
+        scopes.get().add(scope);
+        return scope;
+    }
+
+    private synchronized PixelStorage poll(SampleType sampleType, int length){
+        Map<Integer, Deque<PixelStorage>> byLength = free.get(sampleType);
+        Deque<PixelStorage> storages = byLength == null ? null : byLength.get(length);
+        if(storages == null || storages.isEmpty())
+            return null;
+        PixelStorage storage = storages.pop();
+        pooled.remove(storage);
+        retainedBytes -= (long)length*sampleType.getBytes();
+        return storage;
+    }
+
+    /**
+     * Drops every retained storage.
+     */
+    public synchronized void clear(){
+        free.clear();
+        pooled.clear();
+        retainedBytes = 0;
+    }
+
+    public long getHits(){
+        return hits.get();
+    }
+
+    public long getMisses(){
+        return misses.get();
+    }
+
+    public void resetStatistics(){
+        hits.set(0);
+        misses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StoragePool{hits=%d, misses=%d, retained=%d bytes}", getHits(), getMisses(), retainedBytes);
+    }
+}
@@ -0,0 +1,248 @@
+package formats.storage;
+
+import formats.Image;
+import formats.SampleType;
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Raster split in square tiles, of which at most a fixed amount is kept in memory.
+ * Tiles are loaded on first access, either from a {@link TileLoader} or as zeros, and
+ * the least recently used one is evicted when the cache is full. Evicted tiles that
+ * were written are spilled to a temporary file and read back from it when needed again.
+ * <p>
+ * Indexes are the same ones used by {@link formats.Image}, (x + y*width)*bands + band.
+ */
+public class TiledStorage implements PixelStorage {
+
+    /**
+     * A tile and its 8 neighbours, which is what a mask smaller than a tile reads.
+     */
+    public static final int MIN_CACHED_TILES = 9;
+
+    @FunctionalInterface
+    public interface TileLoader {
+        /**
+         * Fills a tile. The sample of pixel (x, y) and band c goes to index
+         * ((y - y0)*tileSize + (x - x0))*bands + c of tile.
+         * @param x0 left column of the tile
+         * @param y0 top row of the tile
+         * @param tile the samples to fill
+         * @throws IOException
+         */
+        void load(int x0, int y0, PixelStorage tile) throws IOException;
+    }
+
+    private static class Tile {
+        PixelStorage samples;
+        boolean dirty;
+
+        Tile(PixelStorage samples, boolean dirty){
+            this.samples = samples;
+            this.dirty = dirty;
+        }
+    }
+
+    @Getter
+    private final int width, height, bands, tileSize, cachedTiles;
+    private final int tilesX, tileLength;
+    private final SampleType sampleType;
+    private final TileLoader loader;
+
+    private final Map<Integer, Tile> cache;
+    private final BitSet spilled = new BitSet();
+    private FileChannel spill;
+    private ByteBuffer transfer;
+
+    private int lastIndex = -1;
+    private Tile last;
+
+    public TiledStorage(int width, int height, int bands, SampleType sampleType, int tileSize, int cachedTiles){
+        this(width, height, bands, sampleType, tileSize, cachedTiles, null);
+    }
+
+    public TiledStorage(int width, int height, int bands, SampleType sampleType, int tileSize, int cachedTiles,
+                        TileLoader loader){
+        if(tileSize <= 0 || cachedTiles < MIN_CACHED_TILES)
+            throw new IllegalArgumentException();
+        this.width = width;
+        this.height = height;
+        this.bands = bands;
+        this.sampleType = sampleType;
+        this.tileSize = tileSize;
+        this.cachedTiles = cachedTiles;
+        this.loader = loader;
+        this.tilesX = (width + tileSize - 1)/tileSize;
+        this.tileLength = tileSize*tileSize*bands;
+        this.cache = new LinkedHashMap<Integer, Tile>(cachedTiles, 0.75f, true){
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Tile> eldest) {
+                if(size() <= TiledStorage.this.cachedTiles)
+                    return false;
+                evict(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Loads the samples of an 8 bit, band interleaved raw file on demand.
+     */
+    public static TileLoader rawLoader(String path, int width, int height, int bands, int tileSize){
+        return (x0, y0, tile) -> {
+            int columns = Math.min(tileSize, width - x0);
+            byte[] row = new byte[columns*bands];
+            try(RandomAccessFile file = new RandomAccessFile(path, "r")){
+                for(int y = y0; y < Math.min(y0 + tileSize, height); y++){
+                    file.seek(((long)y*width + x0)*bands);
+                    file.readFully(row);
+                    for(int i = 0; i < row.length; i++)
+                        tile.set((y - y0)*tileSize*bands + i, Image.byteToDouble(row[i]));
+                }
+            }
+        };
+    }
+
+    @Override
+    public synchronized double get(int index) {
+        int pixel = index/bands;
+        int x = pixel % width, y = pixel / width;
+        return tile(x, y).samples.get(local(x, y, index - pixel*bands));
+    }
+
+    @Override
+    public synchronized void set(int index, double value) {
+        int pixel = index/bands;
+        int x = pixel % width, y = pixel / width;
+        Tile tile = tile(x, y);
+        tile.samples.set(local(x, y, index - pixel*bands), value);
+        tile.dirty = true;
+    }
+
+    @Override
+    public int length() {
+        return width*height*bands;
+    }
+
+    @Override
+    public SampleType getSampleType() {
+        return sampleType;
+    }
+
+    /**
+     * Copies tile by tile, so at most a cache worth of tiles of each storage is in memory.
+     */
+    @Override
+    public synchronized PixelStorage copy() {
+        TiledStorage ans = new TiledStorage(width, height, bands, sampleType, tileSize, cachedTiles);
+        int tilesY = (height + tileSize - 1)/tileSize;
+        for(int t = 0; t < tilesX*tilesY; t++)
+            ans.cache.put(t, new Tile(tile(t).samples.copy(), true));
+        return ans;
+    }
+
+    @Override
+    public synchronized void write(ByteBuffer out) {
+        PixelStorage sample = sampleType.allocate(1);
+        for(int i = 0; i < length(); i++){
+            sample.set(0, get(i));
+            sample.write(out);
+        }
+    }
+
+    @Override
+    public synchronized void read(ByteBuffer in) {
+        PixelStorage sample = sampleType.allocate(1);
+        for(int i = 0; i < length(); i++){
+            sample.read(in);
+            set(i, sample.get(0));
+        }
+    }
+
+    private int local(int x, int y, int band){
+        return ((y % tileSize)*tileSize + x % tileSize)*bands + band;
+    }
+
+    private Tile tile(int x, int y){
+        return tile((y/tileSize)*tilesX + x/tileSize);
+    }
+
+    private Tile tile(int index){
+        if(index == lastIndex)
+            return last;
+        Tile tile = cache.get(index);
+        if(tile == null){
+            tile = load(index);
+            cache.put(index, tile);
+        }
+        lastIndex = index;
+        last = tile;
+        return tile;
+    }
+
+    private Tile load(int index){
+        PixelStorage samples = sampleType.allocate(tileLength);
+        try {
+            if(spilled.get(index)){
+                ByteBuffer buffer = transfer();
+                long offset = spillOffset(index);
+                while(buffer.hasRemaining() && spill.read(buffer, offset + buffer.position()) >= 0);
+                buffer.flip();
+                samples.read(buffer);
+            } else if(loader != null){
+                loader.load((index % tilesX)*tileSize, (index / tilesX)*tileSize, samples);
+            }
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+        return new Tile(samples, false);
+    }
+
+    private void evict(int index, Tile tile){
+        if(index == lastIndex){
+            lastIndex = -1;
+            last = null;
+        }
+        if(!tile.dirty)
+            return;
+        try {
+            if(spill == null){
+                File file = File.createTempFile("tiles", ".spill");
+                file.deleteOnExit();
+                spill = new RandomAccessFile(file, "rw").getChannel();
+            }
+            ByteBuffer buffer = transfer();
+            tile.samples.write(buffer);
+            buffer.flip();
+            long offset = spillOffset(index);
+            while(buffer.hasRemaining())
+                spill.write(buffer, offset + buffer.position());
+            spilled.set(index);
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long spillOffset(int index){
+        return (long)index*tileLength*sampleType.getBytes();
+    }
+
+    private ByteBuffer transfer(){
+        if(transfer == null)
+            transfer = ByteBuffer.allocate(tileLength*sampleType.getBytes());
+        transfer.clear();
+        return transfer;
+    }
+
+}
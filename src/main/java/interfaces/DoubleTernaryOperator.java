@@ -0,0 +1,11 @@
+package interfaces;
+
+/**
+ * {@link TriFunction} on unboxed doubles.
+ */
+@FunctionalInterface
+public interface DoubleTernaryOperator {
+
+    double applyAsDouble(double a, double b, double c);
+
+}
@@ -821,14 +821,14 @@ public class Main extends Application {
     }
 
     private void showHistogram(BorderPane root , int component , formats.Image X , ChoiceBox bandChoice){
-        double[] histogram = X.histogram(component);
+        long[] histogram = X.histograms()[component];
 
         //Defining the X axis
         NumberAxis xAxis = new NumberAxis(0, 255, 15);
         xAxis.setLabel("Color");
 
         //defining the y Axis
-        NumberAxis yAxis = new NumberAxis(0, Arrays.stream(histogram).max().getAsDouble() + 4, 10);
+        NumberAxis yAxis = new NumberAxis(0, Arrays.stream(histogram).max().getAsLong() + 4, 10);
         yAxis.setLabel("Value");
 
         //Creating the Area chart
@@ -2565,7 +2565,7 @@ public class Main extends Application {
             int width = image.getWidth();
             int height = image.getHeight();
             if (!isSelectionOutOfBounds(x1,y1,x2,y2,width,height) && !areSamePoint(x1,y1,x2,y2)) {
-                pushAndRender(image.copy(x1, y1, x2, y2), stage, root);
+                pushAndRender(image.view(x1, y1, x2, y2), stage, root);
                 newWindow.close();
             }
             bo.getChildren().remove(selection);
@@ -2936,7 +2936,7 @@ public class Main extends Application {
                     return;
                 }
 
-                formats.Image image = stack.pop().equalize().diffusion(t, s, detector).medianFilter(n).canny(t1, t2);
+                formats.Image image = stack.pop().equalizeInPlace().diffusion(t, s, detector).medianFilter(n).canny(t1, t2);
 
                 pushAndRender(image, stage, root);
 
@@ -3489,13 +3489,13 @@ public class Main extends Application {
 
             Rect r = rect.boundingRect();
 
-            formats.Image aux = img.copy(r.x,r.y,r.x+r.width,r.y+r.height);
+            formats.Image aux = img.view(r.x,r.y,r.x+r.width,r.y+r.height);
 
             String platePath = "./images/auxPlate.png";
 
             pushAndRender(aux,stage,root);
 
-            aux = aux.toGS().negative().otsu();
+            aux = aux.toGS().negativeInPlace().otsuInPlace();
 
             formats.Image aux2 = aux;
 
@@ -35,9 +35,93 @@ public final class MathUtils {
 
     public static double median(List<Double> list){
         Collections.sort(list);
-        int middle = list.size() / 2;
-        middle = middle > 0 && middle % 2 == 0 ? middle - 1 : middle;
-        return list.get(middle);
+        return list.get(medianIndex(list.size()));
+    }
+
+    /**
+     * @return the index the median of size sorted values is taken at, the lower of the middle two if
+     * size is even
+     */
+    public static int medianIndex(int size){
+        return (size - 1) / 2;
+    }
+
+    /**
+     * Compare and exchange pairs selecting the middle one of 9 values, and of 25 (Paeth, Devillard)
+     */
+    private static final int[] MEDIAN_9 = {1, 2, 4, 5, 7, 8, 0, 1, 3, 4, 6, 7, 1, 2, 4, 5, 7, 8, 0, 3, 5, 8, 4, 7,
+            3, 6, 1, 4, 2, 5, 4, 7, 4, 2, 6, 4, 4, 2};
+    private static final int[] MEDIAN_25 = {0, 1, 3, 4, 2, 4, 2, 3, 6, 7, 5, 7, 5, 6, 9, 10, 8, 10, 8, 9, 12, 13, 11,
+            13, 11, 12, 15, 16, 14, 16, 14, 15, 18, 19, 17, 19, 17, 18, 21, 22, 20, 22, 20, 21, 23, 24, 2, 5, 3, 6, 0,
+            6, 0, 3, 4, 7, 1, 7, 1, 4, 11, 14, 8, 14, 8, 11, 12, 15, 9, 15, 9, 12, 13, 16, 10, 16, 10, 13, 20, 23, 17,
+            23, 17, 20, 21, 24, 18, 24, 18, 21, 19, 22, 8, 17, 9, 18, 0, 18, 0, 9, 10, 19, 1, 19, 1, 10, 11, 20, 2, 20,
+            2, 11, 12, 21, 3, 21, 3, 12, 13, 22, 4, 22, 4, 13, 14, 23, 5, 23, 5, 14, 15, 24, 6, 24, 6, 15, 7, 16, 7,
+            19, 13, 21, 15, 23, 7, 13, 7, 15, 1, 9, 3, 11, 5, 17, 11, 17, 9, 17, 4, 10, 6, 12, 7, 14, 4, 6, 4, 7, 12,
+            14, 10, 14, 6, 7, 10, 12, 6, 10, 6, 17, 12, 17, 7, 17, 7, 10, 12, 18, 7, 12, 10, 18, 12, 20, 10, 20, 10,
+            12};
+
+    /**
+     * Median of the first length values, which get reordered. 9 and 25 values go through sorting
+     * networks, others through {@link #select}.
+     */
+    public static double median(double[] values, int length){
+        if(length == 9)
+            return network(values, MEDIAN_9);
+        if(length == 25)
+            return network(values, MEDIAN_25);
+        return select(values, length, medianIndex(length));
+    }
+
+    private static double network(double[] values, int[] pairs){
+        for(int k = 0; k < pairs.length; k += 2){
+            int i = pairs[k], j = pairs[k + 1];
+            double a = values[i], b = values[j];
+            values[i] = a < b ? a : b;
+            values[j] = a < b ? b : a;
+        }
+        return values[pairs.length == MEDIAN_9.length ? 4 : 12];
+    }
+
+    /**
+     * Quickselect: the value at index k once the first length values are sorted, which get reordered
+     */
+    public static double select(double[] values, int length, int k){
+        if(k < 0 || k >= length)
+            throw new IllegalArgumentException();
+        int lo = 0, hi = length - 1;
+        while(hi > lo){
+            // Median of three pivot, which also stops the scans below
+            int mid = (lo + hi) >>> 1;
+            if(values[mid] < values[lo])
+                swap(values, lo, mid);
+            if(values[hi] < values[lo])
+                swap(values, lo, hi);
+            if(values[hi] < values[mid])
+                swap(values, mid, hi);
+            double pivot = values[mid];
+            int i = lo, j = hi;
+            while(i <= j){
+                while(values[i] < pivot)
+                    i++;
+                while(values[j] > pivot)
+                    j--;
+                if(i <= j)
+                    swap(values, i++, j--);
+            }
+            if(k <= j)
+                hi = j;
+            else if(k >= i)
+                lo = i;
+            else
+                return values[k];
+        }
+        return values[k];
+    }
+
+    private static void swap(double[] values, int i, int j){
+        double t = values[i];
+        values[i] = values[j];
+        values[j] = t;
     }
 
 
@@ -0,0 +1,250 @@
+package formats;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ConvolutionTest {
+
+    static Image random(int width, int height, Encoding encoding){
+        Random random = new Random(11);
+        Image image = new Image(width, height, encoding, true);
+        image.forEachPixel((x, y) -> {
+            for(int c = 0; c < encoding.getBands(); c++)
+                image.setComponent(x, y, c, random.nextInt(256)*Image.U);
+        });
+        return image;
+    }
+
+    /**
+     * Dense convolution wrapping around the borders, mask[a][b] weighting the sample a columns and
+     * b rows away from the corner of the window.
+     */
+    static double convolve(Image image, double[][] mask, int x, int y, int c){
+        return convolve(image, mask, x, y, c, BorderMode.WRAP);
+    }
+
+    static double convolve(Image image, double[][] mask, int x, int y, int c, BorderMode border){
+        int d = mask.length/2;
+        double accum = 0;
+        for(int a = 0; a < mask.length; a++)
+            for(int b = 0; b < mask.length; b++){
+                int i = border.index(x + a - d, image.getWidth()), j = border.index(y + b - d, image.getHeight());
+                if(i >= 0 && j >= 0)
+                    accum += mask[a][b]*image.getComponent(i, j, c);
+            }
+        return accum;
+    }
+
+    static void assertWithinLevel(double expected, double actual){
+        assertEquals(expected, actual, Image.U + 1e-9);
+    }
+
+    @Test
+    public void separableGaussMatchesDense(){
+        Image image = random(40, 30, Encoding.RGB);
+        int n = 7;
+        double sigma = 2, sum = 0;
+        double[][] mask = new double[n][n];
+        for(int a = 0; a < n; a++)
+            for(int b = 0; b < n; b++)
+                sum += mask[a][b] = Math.exp(-((a - 3)*(a - 3) + (b - 3)*(b - 3))/(2*sigma*sigma));
+        Image gauss = image.gaussFilter(n, sigma);
+        for(int x = 0; x < 40; x++)
+            for(int y = 0; y < 30; y++)
+                for(int c = 0; c < 3; c++)
+                    assertWithinLevel(convolve(image, mask, x, y, c)/sum, gauss.getComponent(x, y, c));
+    }
+
+    @Test
+    public void borderModes(){
+        assertEquals(1, BorderMode.WRAP.index(-4, 5));
+        assertEquals(4, BorderMode.CLAMP.index(7, 5));
+        assertEquals(2, BorderMode.REFLECT.index(-2, 5));
+        assertEquals(2, BorderMode.REFLECT.index(6, 5));
+        assertEquals(1, BorderMode.REFLECT.index(-9, 5));
+        assertEquals(-1, BorderMode.ZERO.index(5, 5));
+        Image image = random(13, 9, Encoding.RGB);
+        for(BorderMode border : BorderMode.values()){
+            for(int n : new int[]{5, 9}){
+                double sum = 0;
+                double[][] mask = new double[n][n];
+                for(int a = 0; a < n; a++)
+                    for(int b = 0; b < n; b++)
+                        sum += mask[a][b] = Math.exp(-((a - n/2)*(a - n/2) + (b - n/2)*(b - n/2))/8.0);
+                Image gauss = image.gaussFilter(n, 2, border);
+                for(int x = 0; x < 13; x++)
+                    for(int y = 0; y < 9; y++)
+                        for(int c = 0; c < 3; c++)
+                            assertWithinLevel(convolve(image, mask, x, y, c, border)/sum, gauss.getComponent(x, y, c));
+            }
+        }
+    }
+
+    @Test
+    public void sweepsMatchDense(){
+        Random random = new Random(9);
+        Image image = random(21, 14, Encoding.RGB);
+        for(int n : new int[]{3, 5, 7}){
+            PaddedImage padded = new PaddedImage(image, n/2, BorderMode.REFLECT, false).fill(0, 0, 21, 14);
+            PaddedImage levels = new PaddedImage(image, n/2, BorderMode.REFLECT, true).fill(0, 0, 21, 14);
+            double[][][] masks = new double[3][n][n];
+            for(double[][] mask : masks)
+                for(double[] row : mask)
+                    for(int b = 0; b < n; b++)
+                        row[b] = random.nextInt(9) - 4;
+            MaskSweep sweep = MaskSweep.compile(masks, new int[]{2, 0, 1}, padded.stride);
+            assertTrue(sweep.isInteger());
+            double[][] samples = new double[3][21], whole = new double[3][21];
+            for(int y = 0; y < 14; y++){
+                for(int c = 0; c < 3; c++){
+                    sweep.apply(padded.samples[c], padded.index(0, y), 21, samples);
+                    sweep.apply(levels.levels[c], levels.index(0, y), 21, whole);
+                    for(int x = 0; x < 21; x++){
+                        for(int m = 0; m < 3; m++){
+                            double expected = convolve(image, masks[m], x, y, c, BorderMode.REFLECT);
+                            int target = (m + 2) % 3;
+                            assertEquals(expected, samples[target][x], 1e-9);
+                            assertEquals(expected, whole[target][x], 1e-9);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void largeMasksAccumulateDoubles(){
+        Image image = random(20, 20, Encoding.GS);
+        int n = 17;
+        double[][] mask = new double[n][n];
+        for(int a = 0; a < n; a++)
+            for(int b = 0; b < n; b++)
+                mask[a][b] = (a + b) % 3 == 0 ? -(1 << 15) : 1 << 15;
+        // 289*32768*255 is past the largest int
+        PaddedImage levels = new PaddedImage(image, n/2, BorderMode.WRAP, true).fill(0, 0, 20, 20);
+        MaskSweep sweep = MaskSweep.compile(new double[][][]{mask}, new int[]{0}, levels.stride);
+        assertFalse(sweep.isInteger());
+        assertTrue(MaskSweep.compile(new double[][][]{{{1 << 15, 1 << 15, 1 << 15}, {1 << 15, 1 << 15, 1 << 15},
+                {1 << 15, 1 << 15, 1 << 15}}}, new int[]{0}, levels.stride).isInteger());
+        PaddedImage padded = new PaddedImage(image, n/2, BorderMode.WRAP, false).fill(0, 0, 20, 20);
+        double[][] out = new double[1][20];
+        for(int y = 0; y < 20; y++){
+            sweep.apply(padded.samples[0], padded.index(0, y), 20, out);
+            for(int x = 0; x < 20; x++)
+                assertEquals(convolve(image, mask, x, y, 0), out[0][x], 1e-6);
+        }
+        // Tiled images run large dense masks through the sweeps rather than the Fourier transform
+        TiledImage tiled = new TiledImage(20, 20, Encoding.GS, SampleType.BYTE, 8, 9);
+        tiled.forEachPixel((x, y) -> tiled.setComponent(x, y, 0, image.getComponent(x, y, 0)));
+        Image expected = image.genericConvolution(mask), convolved = tiled.genericConvolution(mask);
+        for(int x = 0; x < 20; x++)
+            for(int y = 0; y < 20; y++)
+                assertWithinLevel(expected.getComponent(x, y, 0), convolved.getComponent(x, y, 0));
+    }
+
+    @Test
+    public void recursiveGaussMatchesDense(){
+        Image image = random(50, 40, Encoding.GS);
+        // The whole Gaussian, then masks 6 sigmas wide and wider, which gaussFilter(n, sigma) runs recursively
+        double[][] cases = {{0.8, 0}, {3, 0}, {1.5, 9}, {1.5, 11}, {3, 19}, {5, 31}};
+        for(double[] test : cases){
+            double sigma = test[0];
+            int n = test[1] > 0 ? (int) test[1] : 2*(int) Math.ceil(4*sigma) + 1, d = n/2;
+            double sum = 0;
+            double[][] mask = new double[n][n];
+            for(int a = 0; a < n; a++)
+                for(int b = 0; b < n; b++)
+                    sum += mask[a][b] = Math.exp(-((a - d)*(a - d) + (b - d)*(b - d))/(2*sigma*sigma));
+            Image gauss = test[1] > 0 ? image.gaussFilter(n, sigma) : image.gaussFilter(sigma);
+            // Within a level of what the dense mask gives once rounded
+            for(int x = 0; x < 50; x++)
+                for(int y = 0; y < 40; y++)
+                    assertWithinLevel(Image.round(convolve(image, mask, x, y, 0)/sum), gauss.getComponent(x, y, 0));
+        }
+    }
+
+    @Test
+    public void fourierTransformRoundTrips(){
+        Random random = new Random(5);
+        for(int[] size : new int[][]{{16, 8}, {15, 7}, {12, 1}, {1, 9}}){
+            double[] samples = new double[size[0]*size[1]];
+            for(int i = 0; i < samples.length; i++)
+                samples[i] = random.nextDouble();
+            double[] back = FourierTransform.of(samples, size[0], size[1], Parallelism.SEQUENTIAL).inverse(Parallelism.SEQUENTIAL);
+            assertArrayEquals(samples, back, 1e-12);
+        }
+    }
+
+    @Test
+    public void fourierMatchesDense(){
+        Random random = new Random(3);
+        double[][] mask = new double[11][11];
+        for(int a = 0; a < 11; a++)
+            for(int b = 0; b < 11; b++)
+                mask[a][b] = random.nextDouble() - 0.5;
+        for(int[] size : new int[][]{{32, 16}, {29, 17}}){
+            BorderMode border = size[0] == 32 ? BorderMode.WRAP : BorderMode.REFLECT;
+            Image image = random(size[0], size[1], Encoding.GS);
+            double[] dense = new double[size[0]*size[1]];
+            double max = -Double.MAX_VALUE, min = Double.MAX_VALUE;
+            for(int i = 0; i < dense.length; i++){
+                dense[i] = convolve(image, mask, i % size[0], i / size[0], 0, border);
+                max = Math.max(max, dense[i]);
+                min = Math.min(min, dense[i]);
+            }
+            Image convolved = image.genericConvolution(mask, border);
+            for(int i = 0; i < dense.length; i++)
+                assertWithinLevel((dense[i] - min)/(max - min), convolved.getComponent(i % size[0], i / size[0], 0));
+        }
+    }
+
+    @Test
+    public void kernelsAreShared(){
+        Kernels.Kernel gauss = Kernels.gauss(7, 1.5);
+        assertSame(gauss, Kernels.gauss(7, 1.5));
+        assertNotSame(gauss, Kernels.gauss(7, 2));
+        double[] factor = gauss.getFactor(), weights = gauss.getWeights();
+        weights[0] = -1;
+        assertEquals(factor[0]*factor[0], gauss.weight(0, 0), 0);
+        for(int a = 0; a < 7; a++)
+            for(int b = 0; b < 7; b++)
+                assertEquals(factor[a]*factor[b], gauss.weight(a, b), 0);
+        assertFalse(Kernels.loG(9, 1.4).isSeparable());
+    }
+
+    @Test
+    public void bilateralModes(){
+        Image image = random(21, 14, Encoding.RGB);
+        int n = 5, d = 2, sigmaS = 2, sigmaR = 1;
+        Image exact = image.bilateralFilter(n, sigmaS, sigmaR, BorderMode.REFLECT);
+        for(int x = 0; x < 21; x++)
+            for(int y = 0; y < 14; y++){
+                double[] accum = new double[3];
+                double divisor = 0;
+                for(int a = 0; a < n; a++)
+                    for(int b = 0; b < n; b++){
+                        int i = BorderMode.REFLECT.index(x + a - d, 21), j = BorderMode.REFLECT.index(y + b - d, 14);
+                        double module = 0;
+                        for(int c = 0; c < 3; c++)
+                            module += Math.pow(image.getComponent(x, y, c) - image.getComponent(i, j, c), 2);
+                        double weight = Math.exp(-(Math.pow(a - d, 2) + Math.pow(b - d, 2))/(2*sigmaS*sigmaS) - module/(2*sigmaR*sigmaR));
+                        for(int c = 0; c < 3; c++)
+                            accum[c] += weight*image.getComponent(i, j, c);
+                        divisor += weight;
+                    }
+                for(int c = 0; c < 3; c++)
+                    assertWithinLevel(accum[c]/divisor, exact.getComponent(x, y, c));
+            }
+
+        // The grid smooths each side of an edge without blurring it
+        Image edge = new Image(40, 30, Encoding.GS, true);
+        edge.forEachPixel((x, y) -> edge.setComponent(x, y, 0, x < 20 ? 0.2 : 0.8));
+        Image grid = edge.bilateralGridFilter(4, 0.1);
+        for(int x = 0; x < 40; x++)
+            for(int y = 0; y < 30; y++)
+                assertEquals(edge.getComponent(x, y, 0), grid.getComponent(x, y, 0), 2*Image.U);
+    }
+}
@@ -0,0 +1,83 @@
+package formats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DiffusionTest {
+
+    /**
+     * Iterates diffusion a sample at a time, reading past the borders as border says
+     */
+    static double[][] diffuse(Image image, int t, double sigma, Image.DiffusionBorderDetector detector, BorderMode border){
+        int width = image.getWidth(), height = image.getHeight(), bands = image.getEncoding().getBands();
+        double[][] samples = new double[bands][width*height];
+        for(int c = 0; c < bands; c++)
+            for(int k = 0; k < width*height; k++)
+                samples[c][k] = image.getComponent(k % width, k / width, c);
+        for(int i = 0; i < t; i++){
+            double[][] next = new double[bands][width*height];
+            for(int c = 0; c < bands; c++)
+                for(int k = 0; k < width*height; k++){
+                    int x = k % width, y = k / width;
+                    double v = samples[c][k], sum = 0;
+                    int[][] neighbours = {{x + 1, y}, {x - 1, y}, {x, y - 1}, {x, y + 1}};
+                    for(int[] neighbour : neighbours){
+                        int nx = border.index(neighbour[0], width), ny = border.index(neighbour[1], height);
+                        double difference = (nx < 0 || ny < 0 ? 0 : samples[c][nx + ny*width]) - v;
+                        sum += difference*detector.conductance(sigma, difference);
+                    }
+                    next[c][k] = v + 0.25*sum;
+                }
+            samples = next;
+        }
+        return samples;
+    }
+
+    @Test
+    public void matchesSampleAtATime(){
+        Image image = ConvolutionTest.random(31, 19, Encoding.RGB);
+        for(BorderMode border : BorderMode.values()){
+            Image.DiffusionBorderDetector detector = Image.DiffusionBorderDetector.values()[border.ordinal() % 3];
+            double[][] expected = diffuse(image, 4, 0.1, detector, border);
+            Image diffused = image.diffusion(4, 0.1, detector, border);
+            for(int c = 0; c < 3; c++)
+                for(int k = 0; k < 31*19; k++)
+                    assertEquals(Image.byteToDouble(Image.doubleToByte(expected[c][k])), diffused.getComponent(k % 31, k / 31, c), 1e-12);
+        }
+    }
+
+    @Test
+    public void stopsOnceStill(){
+        Image image = new Image(20, 10, Encoding.GS, true);
+        image.forEachPixel((x, y) -> image.setComponent(x, y, 0, x < 10 ? 0.4 : 0.6));
+        Image.DiffusionBorderDetector detector = Image.DiffusionBorderDetector.ISOTROPIC;
+        // Both settle near the mean, the first stopping far sooner
+        Image early = image.diffusion(100000, 0.1, detector, BorderMode.REFLECT, 1e-4);
+        Image full = image.diffusion(100000, 0.1, detector, BorderMode.REFLECT);
+        for(int x = 0; x < 20; x++)
+            assertEquals(full.getComponent(x, 0, 0), early.getComponent(x, 0, 0), 0.02);
+        double[][] expected = diffuse(image, 3, 0.1, detector, BorderMode.REFLECT);
+        assertEquals(Image.byteToDouble(Image.doubleToByte(expected[0][9])), image.diffusion(3, 0.1, detector, BorderMode.REFLECT, 1e-9).getComponent(9, 0, 0), 1e-12);
+    }
+
+    @Test
+    public void blocksMatchIterations(){
+        for(int[] size : new int[][]{{31, 19}, {7, 3}, {12, 1}}){
+            Image image = ConvolutionTest.random(size[0], size[1], Encoding.RGB);
+            for(BorderMode border : BorderMode.values()){
+                Diffusion plain = new Diffusion(image, 0.1, Image.DiffusionBorderDetector.LECLERC, border);
+                Diffusion blocked = new Diffusion(image, 0.1, Image.DiffusionBorderDetector.LECLERC, border);
+                for(int steps : new int[]{1, 3, 5}){
+                    for(int k = 0; k < steps; k++)
+                        plain.iterate(false);
+                    blocked.iterate(steps, 4, false);
+                    for(int c = 0; c < 3; c++)
+                        for(int y = 0; y < size[1]; y++)
+                            for(int x = 0; x < size[0]; x++)
+                                assertEquals(plain.get(x, y, c), blocked.get(x, y, c), 0);
+                }
+            }
+        }
+    }
+}
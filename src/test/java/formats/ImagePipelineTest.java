@@ -0,0 +1,59 @@
+package formats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ImagePipelineTest {
+
+    @Test
+    public void fusedMatchesEager(){
+        for(SampleType type : new SampleType[]{SampleType.DOUBLE, SampleType.BYTE}){
+            Image image = image(type, false);
+            Image eager = image.negative().gammaCorrection(2.2).equalize().scalarProduct(1.5)
+                    .dynamicRangeCompression().thresholding(0.4);
+            Image fused = image.pipeline().negative().gammaCorrection(2.2).equalize().scalarProduct(1.5)
+                    .dynamicRangeCompression().thresholding(0.4).toImage();
+            assertSameSamples(image, eager, fused);
+        }
+    }
+
+    @Test
+    public void unroundedSamples(){
+        Image image = image(SampleType.DOUBLE, true);
+        assertSameSamples(image, image.gammaCorrection(0.5).negative(),
+                image.pipeline().gammaCorrection(0.5).negative().toImage());
+    }
+
+    @Test
+    public void normalize(){
+        Image image = image(SampleType.DOUBLE, false);
+        Image ans = image.pipeline().normalize().toImage();
+        for(int c = 0; c < 3; c++){
+            double[] maxMin = ans.maxAndMin(c);
+            assertEquals(1, maxMin[0], Image.U);
+            assertEquals(0, maxMin[1], Image.U);
+        }
+    }
+
+    private static Image image(SampleType type, boolean unrounded){
+        Image image = new Image(23, 17, Encoding.RGB, type, true);
+        for(int x = 0; x < 23; x++)
+            for(int y = 0; y < 17; y++)
+                for(int c = 0; c < 3; c++){
+                    double v = ((x*31 + y*7 + c*53) % 150 + 40)/255.0;
+                    if(unrounded)
+                        image.setComponentNoRound(x, y, c, v + 0.3*Image.U);
+                    else
+                        image.setComponent(x, y, c, v);
+                }
+        return image;
+    }
+
+    private static void assertSameSamples(Image image, Image expected, Image actual){
+        for(int x = 0; x < image.getWidth(); x++)
+            for(int y = 0; y < image.getHeight(); y++)
+                for(int c = 0; c < 3; c++)
+                    assertEquals(0, Double.compare(expected.getComponent(x, y, c), actual.getComponent(x, y, c)));
+    }
+}
@@ -30,6 +30,114 @@ public class ImageTest {
         assertEquals(0, Double.compare(0, imageC.getComponent(0,0,0)));
     }
 
+    @Test
+    public void copyOnWrite(){
+        Image image = new Image(10,10,Encoding.GS,true);
+        Image imageC = image.clone();
+        Image imageCC = imageC.clone();
+        imageC.setComponent(0,0,0,1);
+        assertEquals(0, Double.compare(0, image.getComponent(0,0,0)));
+        assertEquals(0, Double.compare(1, imageC.getComponent(0,0,0)));
+        assertEquals(0, Double.compare(0, imageCC.getComponent(0,0,0)));
+        imageCC.setComponent(0,0,0,0.5);
+        assertEquals(0, Double.compare(0, image.getComponent(0,0,0)));
+    }
+
+    @Test
+    public void inPlace(){
+        Image image = new Image(10,10,Encoding.GS,true);
+        Image negative = image.negative();
+        assertSame(image, image.negativeInPlace());
+        assertEquals(0, Double.compare(1, image.getComponent(0,0,0)));
+        assertEquals(0, Double.compare(1, negative.getComponent(0,0,0)));
+    }
+
+    @Test
+    public void views(){
+        double half = Image.round(0.5);
+        Image image = new Image(10,10,Encoding.GS,true);
+        image.setComponent(3,4,0,1);
+        Image view = image.view(2,2,8,8);
+        Image inner = view.view(1,1,4,4, true);
+        assertEquals(6, view.getWidth());
+        assertEquals(0, Double.compare(1, view.getComponent(1,2,0)));
+        assertEquals(0, Double.compare(1, inner.getComponent(0,1,0)));
+        inner.setComponent(0,0,0,0.5);
+        assertEquals(0, Double.compare(half, view.getComponent(1,1,0)));
+        assertEquals(0, Double.compare(0, image.getComponent(3,3,0)));
+        view.setComponent(0,0,0,1);
+        assertEquals(0, Double.compare(0, image.getComponent(2,2,0)));
+        assertEquals(0, Double.compare(half, view.getComponent(1,1,0)));
+        assertEquals(0, Double.compare(half, inner.getComponent(0,0,0)));
+        assertEquals(0, Double.compare(1, view.copy(0,0,5,5).getComponent(1,2,0)));
+    }
+
+    @Test
+    public void statisticsFollowWrites(){
+        Image image = new Image(10,10,Encoding.GS,true);
+        Image inner = image.view(0,0,5,5, true);
+        double[] histogram = image.histogram(0);
+        assertEquals(100, histogram[0], 0);
+        histogram[0] = 0;
+        assertEquals(100, image.histogram(0)[0], 0);
+        Image clone = image.clone();
+        clone.setComponent(1,1,0,1);
+        assertEquals(1, clone.histogram(0)[255], 0);
+        assertEquals(0, image.histogram(0)[255], 0);
+        assertEquals(25, inner.histogram(0)[0], 0);
+        inner.setComponent(0,0,0,1);
+        assertEquals(1, image.histogram(0)[255], 0);
+        assertEquals(1, image.maxAndMin(0)[0], 0);
+        image.setComponent(1,0,0,1);
+        assertEquals(2, inner.histogram(0)[255], 0);
+        assertEquals(0.02, image.meanAndStd(0)[0], 1e-12);
+    }
+
+    @Test
+    public void histogramsOfAllBands(){
+        for(SampleType sampleType : new SampleType[]{SampleType.BYTE, SampleType.DOUBLE}){
+            Image image = new Image(300, 120, Encoding.RGB, sampleType, true);
+            image.forEachPixel((x, y) -> image.setComponents(x, y, new double[]{x/300.0, y/120.0, (x*y % 256)/255.0}));
+            long[][] histograms = image.histograms();
+            for(int c = 0; c < 3; c++){
+                double[] histogram = new double[256];
+                for(int x = 0; x < 300; x++)
+                    for(int y = 0; y < 120; y++)
+                        histogram[Image.M & Image.doubleToByte(image.getComponent(x, y, c))]++;
+                for(int level = 0; level < 256; level++)
+                    assertEquals(histogram[level], histograms[c][level], 0);
+            }
+            long[][] joint = image.jointHistogram(0, 4, 2, 16), expected = new long[4][16];
+            for(int x = 0; x < 300; x++)
+                for(int y = 0; y < 120; y++)
+                    expected[(Image.M & Image.doubleToByte(image.getComponent(x, y, 0)))/64]
+                            [(Image.M & Image.doubleToByte(image.getComponent(x, y, 2)))/16]++;
+            for(int i = 0; i < 4; i++)
+                assertArrayEquals(expected[i], joint[i]);
+        }
+    }
+
+    @Test
+    public void hueSaturationHistogram(){
+        Image image = new Image(90, 60, Encoding.RGB, true);
+        image.forEachPixel((x, y) -> image.setComponents(x, y, x < 10 ? new double[]{y/60.0, y/60.0, y/60.0}
+                : Image.toRGB(x*4.0, (y + 1)/60.0, 1)));
+        image.toHSV();
+        long[][] joint = image.jointHistogram(0, 6, 1, 4), expected = new long[6][4];
+        for(int x = 0; x < 90; x++)
+            for(int y = 0; y < 60; y++){
+                double hue = image.getComponent(x, y, 0);
+                int saturation = Image.M & Image.doubleToByte(image.getComponent(x, y, 1));
+                expected[Double.isNaN(hue) ? 0 : Math.min(5, (int) (hue/60))][saturation/64]++;
+            }
+        for(int i = 0; i < 6; i++)
+            assertArrayEquals(expected[i], joint[i]);
+        // Grey pixels count in the first bins
+        assertTrue(joint[0][0] >= 10*60);
+        for(int i = 0; i < 6; i++)
+            assertTrue(joint[i][3] > 0);
+    }
+
     @Test
     public void testByteToDoubleConversion(){
         int count[] = new int[256];
@@ -0,0 +1,77 @@
+package formats;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class IntegralImageTest {
+
+    private static Image random(boolean levels){
+        Random random = new Random(7);
+        Image image = new Image(23, 17, Encoding.RGB, true);
+        image.forEachPixel((x, y) -> {
+            for(int c = 0; c < 3; c++){
+                if(levels)
+                    image.setComponent(x, y, c, random.nextInt(256)*Image.U);
+                else
+                    image.setComponentNoRound(x, y, c, random.nextDouble());
+            }
+        });
+        return image;
+    }
+
+    @Test
+    public void boxesMatchSums(){
+        for(boolean levels : new boolean[]{true, false}){
+            Image image = random(levels);
+            IntegralImage integral = image.integralImage();
+            assertEquals(levels, integral.isExact());
+            double sum = 0, squares = 0;
+            for(int x = 3; x < 11; x++)
+                for(int y = 5; y < 17; y++){
+                    sum += image.getComponent(x, y, 1);
+                    squares += image.getComponent(x, y, 1)*image.getComponent(x, y, 1);
+                }
+            double mean = sum/96;
+            assertEquals(sum, integral.sum(1, 3, 5, 11, 17), 1e-9);
+            assertEquals(mean, integral.mean(1, 3, 5, 11, 17), 1e-12);
+            assertEquals(squares/96 - mean*mean, integral.variance(1, 3, 5, 11, 17), 1e-12);
+        }
+    }
+
+    @Test
+    public void wrappedBoxes(){
+        Image image = random(true);
+        IntegralImage integral = image.integralImage();
+        for(int[] box : new int[][]{{-2, -3, 5, 5}, {20, 15, 7, 4}, {-30, 4, 50, 40}}){
+            double sum = 0;
+            for(int x = box[0]; x < box[0] + box[2]; x++)
+                for(int y = box[1]; y < box[1] + box[3]; y++)
+                    sum += image.getComponent(Math.floorMod(x, 23), Math.floorMod(y, 17), 2);
+            assertEquals(sum, integral.wrappedSum(2, box[0], box[1], box[2], box[3]), 1e-9);
+        }
+    }
+
+    @Test
+    public void regionAverages(){
+        Image image = random(true);
+        RegionFeatures features = RegionFeatures.buildRegionFeatures(image, 4, 3, 12, 10);
+        double[] object = new double[3], background = new double[3];
+        int objects = 0, backgrounds = 0;
+        for(int x = 0; x < 23; x++)
+            for(int y = 0; y < 17; y++){
+                int phi = features.phi(x, y);
+                for(int c = 0; c < 3 && (phi == -3 || phi == 3); c++)
+                    (phi == -3 ? object : background)[c] += image.getComponent(x, y, c);
+                if(phi == -3)
+                    objects++;
+                else if(phi == 3)
+                    backgrounds++;
+            }
+        assertEquals(object[0]/objects, features.getObjAvg().x, 1e-12);
+        assertEquals(object[2]/objects, features.getObjAvg().z, 1e-12);
+        assertEquals(background[1]/backgrounds, features.getBackAvg().y, 1e-12);
+    }
+}
@@ -0,0 +1,47 @@
+package formats;
+
+import org.junit.Test;
+
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class LookupTableTest {
+
+    @Test
+    public void tablesMatchRounding(){
+        LookupTable table = new LookupTable(r -> Image.gammaCorrection(r, 0.4));
+        for(int i = 0; i < 256; i++){
+            double r = Image.byteToDouble((byte) i);
+            assertEquals(0, Double.compare(Image.round(Image.gammaCorrection(r, 0.4)), table.apply(r)));
+        }
+    }
+
+    @Test
+    public void pointOperationsMatchDouble(){
+        check(Image::negative);
+        check(i -> i.thresholding(0.3));
+        check(i -> i.gammaCorrection(2.2));
+        check(Image::dynamicRangeCompression);
+        check(Image::equalize);
+        check(Image::automaticContrastEnhancement);
+        check(i -> i.view(3, 2, 17, 11).negative());
+    }
+
+    private static void check(Function<Image, Image> op){
+        Image d = new Image(20, 13, Encoding.RGB, true);
+        Image b = new Image(20, 13, Encoding.RGB, SampleType.BYTE, true);
+        for(int x = 0; x < 20; x++)
+            for(int y = 0; y < 13; y++)
+                for(int c = 0; c < 3; c++){
+                    double v = Image.byteToDouble((byte) ((x*37 + y*11 + c*101) % 200 + 20));
+                    d.setComponent(x, y, c, v);
+                    b.setComponent(x, y, c, v);
+                }
+        Image dAns = op.apply(d), bAns = op.apply(b);
+        for(int x = 0; x < dAns.getWidth(); x++)
+            for(int y = 0; y < dAns.getHeight(); y++)
+                for(int c = 0; c < 3; c++)
+                    assertEquals(0, Double.compare(dAns.getComponent(x, y, c), bAns.getComponent(x, y, c)));
+    }
+}
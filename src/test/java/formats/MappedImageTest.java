@@ -0,0 +1,48 @@
+package formats;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class MappedImageTest {
+
+    private static File pgm(int width, int height) throws IOException {
+        File file = File.createTempFile("mapped", ".pgm");
+        file.deleteOnExit();
+        try(FileOutputStream out = new FileOutputStream(file)){
+            out.write(("P5\n" + width + " " + height + "\n255\n").getBytes());
+            for(int i = 0; i < width*height; i++)
+                out.write((i*7) % 256);
+        }
+        return file;
+    }
+
+    @Test
+    public void mappedMatchesHeap() throws IOException {
+        File file = pgm(40, 30);
+        Image heap = new Pgm(file.getPath());
+        Image mapped = new Pgm(file.getPath(), true);
+
+        assertArrayEquals(heap.histogram(0), mapped.histogram(0), 0);
+
+        Image heapNeg = heap.negative().thresholding(0.5), mappedNeg = mapped.negative().thresholding(0.5);
+        for(int x = 0; x < 40; x++)
+            for(int y = 0; y < 30; y++)
+                assertEquals(0, Double.compare(heapNeg.getComponent(x, y, 0), mappedNeg.getComponent(x, y, 0)));
+    }
+
+    @Test
+    public void writesDoNotReachTheFile() throws IOException {
+        File file = pgm(8, 8);
+        byte[] before = Files.readAllBytes(file.toPath());
+        Image mapped = new Pgm(file.getPath(), true);
+        mapped.negative(0);
+        assertArrayEquals(before, Files.readAllBytes(file.toPath()));
+    }
+
+}
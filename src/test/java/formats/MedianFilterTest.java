@@ -0,0 +1,136 @@
+package formats;
+
+import org.junit.Test;
+import utils.MathUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MedianFilterTest {
+
+    /**
+     * Median of the window of (x, y), cut by the borders, each sample counted as many times as the
+     * mask says
+     */
+    static double median(Image image, int[][] mask, int x, int y, int c){
+        int d = mask.length/2;
+        List<Double> list = new ArrayList<>();
+        for(int a = 0; a < mask.length; a++)
+            for(int b = 0; b < mask.length; b++){
+                int i = x + a - d, j = y + b - d;
+                if(i >= 0 && j >= 0 && i < image.getWidth() && j < image.getHeight())
+                    for(int t = 0; t < mask[a][b]; t++)
+                        list.add(image.getComponent(i, j, c));
+            }
+        return MathUtils.median(list);
+    }
+
+    static int[][] ones(int n){
+        int[][] mask = new int[n][n];
+        for(int[] row : mask)
+            Arrays.fill(row, 1);
+        return mask;
+    }
+
+    static void assertFiltered(Image image, int[][] mask, Image filtered){
+        assertFiltered(image, mask, filtered, 0);
+    }
+
+    static void assertFiltered(Image image, int[][] mask, Image filtered, double delta){
+        for(int x = 0; x < image.getWidth(); x++)
+            for(int y = 0; y < image.getHeight(); y++)
+                for(int c = 0; c < image.getEncoding().getBands(); c++)
+                    assertEquals(median(image, mask, x, y, c), filtered.getComponent(x, y, c), delta);
+    }
+
+    @Test
+    public void histogramMedians(){
+        Image image = ConvolutionTest.random(37, 23, Encoding.RGB);
+        for(int n : new int[]{1, 3, 5, 9})
+            assertFiltered(image, ones(n), image.medianFilter(n));
+        int[][] weighted = {{1, 2, 1}, {2, 4, 2}, {1, 2, 1}};
+        assertFiltered(image, weighted, image.weightedMedianFilter());
+        Image thin = ConvolutionTest.random(3, 40, Encoding.GS);
+        assertFiltered(thin, ones(7), thin.medianFilter(7));
+    }
+
+    @Test
+    public void selection(){
+        Random random = new Random(7);
+        for(int length : new int[]{1, 2, 8, 9, 16, 25, 49, 100}){
+            for(int trial = 0; trial < 50; trial++){
+                double[] values = new double[length];
+                for(int i = 0; i < length; i++)
+                    values[i] = random.nextInt(length);
+                double[] sorted = values.clone();
+                Arrays.sort(sorted);
+                assertEquals(sorted[(length - 1)/2], MathUtils.median(values.clone(), length), 0);
+                int k = random.nextInt(length);
+                assertEquals(sorted[k], MathUtils.select(values, length, k), 0);
+            }
+        }
+    }
+
+    @Test
+    public void samplesBetweenLevels(){
+        Image image = ConvolutionTest.random(19, 13, Encoding.GS);
+        image.forEachPixel((x, y) -> image.setComponentNoRound(x, y, 0, image.getComponent(x, y, 0)*0.999));
+        for(int n : new int[]{3, 5, 7})
+            assertFiltered(image, ones(n), image.medianFilter(n), Image.U);
+    }
+
+    @Test
+    public void rankFilters(){
+        int[][] cross = {{0, 1, 0}, {1, 2, 1}, {0, 1, 0}};
+        for(Image image : new Image[]{ConvolutionTest.random(23, 17, Encoding.RGB), ConvolutionTest.random(9, 30, Encoding.GS)}){
+            Image between = image.clone();
+            between.forEachPixel((x, y) -> {
+                for(int c = 0; c < image.getEncoding().getBands(); c++)
+                    between.setComponentNoRound(x, y, c, image.getComponent(x, y, c)*0.999);
+            });
+            for(Image source : new Image[]{image, between}){
+                assertRanks(source, ones(5), 0, -1, source.minFilter(5));
+                assertRanks(source, ones(3), 1, -1, source.maxFilter(3));
+                assertRanks(source, ones(7), 0.3, -1, source.percentileFilter(7, 0.3));
+                assertRanks(source, cross, 0.75, -1, source.percentileFilter(cross, 0.75));
+                assertRanks(source, ones(5), 0, 0.2, source.trimmedMeanFilter(5, 0.2));
+            }
+            assertFiltered(image, ones(5), image.percentileFilter(5, 0.5));
+        }
+    }
+
+    /**
+     * Checks the percentile of each window, or its mean trimmed by trim if it's not negative
+     */
+    static void assertRanks(Image image, int[][] mask, double percentile, double trim, Image filtered){
+        int d = mask.length/2;
+        for(int x = 0; x < image.getWidth(); x++)
+            for(int y = 0; y < image.getHeight(); y++)
+                for(int c = 0; c < image.getEncoding().getBands(); c++){
+                    List<Double> list = new ArrayList<>();
+                    for(int a = 0; a < mask.length; a++)
+                        for(int b = 0; b < mask.length; b++){
+                            int i = x + a - d, j = y + b - d;
+                            if(i >= 0 && j >= 0 && i < image.getWidth() && j < image.getHeight())
+                                for(int t = 0; t < mask[a][b]; t++)
+                                    list.add(image.getComponent(i, j, c));
+                        }
+                    list.sort(null);
+                    double expected;
+                    if(trim < 0)
+                        expected = list.get((int) (percentile*(list.size() - 1)));
+                    else{
+                        int cut = (int) (trim*list.size());
+                        expected = 0;
+                        for(int k = cut; k < list.size() - cut; k++)
+                            expected += list.get(k);
+                        expected /= list.size() - 2*cut;
+                    }
+                    assertEquals(expected, filtered.getComponent(x, y, c), Image.U + 1e-9);
+                }
+    }
+}
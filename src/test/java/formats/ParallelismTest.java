@@ -0,0 +1,64 @@
+package formats;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class ParallelismTest {
+
+    private static final Parallelism POOL = Parallelism.of(new ForkJoinPool(4));
+
+    @Test
+    public void stripesCoverTheImage(){
+        int[] rows = new int[301];
+        Parallelism.SEQUENTIAL.forEachStripe(100, 301, (y0, y1) -> {
+            for(int y = y0; y < y1; y++)
+                rows[y]++;
+        });
+        for(int count : rows)
+            assertEquals(1, count);
+        assertTrue(Parallelism.stripes(100, 301) > 1);
+    }
+
+    @Test
+    public void parallelMatchesSequential(){
+        check(Image::sobel);
+        check(i -> i.gaussFilter(5, 1));
+        check(Image::equalize);
+        check(i -> i.diffusion(3, 0.1, Image.DiffusionBorderDetector.LECLERC));
+        check(i -> i.canny(0.2, 0.5));
+        check(i -> i.harris(0.04, 0.001, 1));
+        check(Image::automaticContrastEnhancement);
+        check(i -> i.add(i.negative()));
+    }
+
+    @Test
+    public void reductionsMatchSequential(){
+        Image sequential = image(Parallelism.SEQUENTIAL), parallel = image(POOL);
+        assertArrayEquals(sequential.histogram(1), parallel.histogram(1), 0);
+        assertArrayEquals(sequential.maxAndMin(2), parallel.maxAndMin(2), 0);
+        assertArrayEquals(sequential.avg(), parallel.avg(), 0);
+    }
+
+    private static void check(Function<Image, Image> op){
+        Image sequential = op.apply(image(Parallelism.SEQUENTIAL)), parallel = op.apply(image(POOL));
+        for(int x = 0; x < sequential.getWidth(); x++)
+            for(int y = 0; y < sequential.getHeight(); y++)
+                for(int c = 0; c < sequential.getEncoding().getBands(); c++)
+                    assertEquals(0, Double.compare(sequential.getComponent(x, y, c), parallel.getComponent(x, y, c)));
+    }
+
+    private static Image image(Parallelism parallelism){
+        Random random = new Random(7);
+        Image image = new Image(160, 230, Encoding.RGB, true).setParallelism(parallelism);
+        for(int x = 0; x < image.getWidth(); x++)
+            for(int y = 0; y < image.getHeight(); y++)
+                for(int c = 0; c < 3; c++)
+                    image.setComponent(x, y, c, (x + y*c)%97/255.0 + random.nextInt(64)/255.0);
+        return image;
+    }
+}
@@ -0,0 +1,44 @@
+package formats;
+
+import formats.storage.PixelStorage;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SampleTypeTest {
+
+    @Test
+    public void roundedSamplesAreExact(){
+        for(SampleType type : SampleType.values()){
+            PixelStorage storage = type.allocate(256);
+            for(int i = 0; i < 256; i++)
+                storage.set(i, Image.byteToDouble((byte)i));
+            for(int i = 0; i < 256; i++)
+                assertEquals(type.name(), 0, Double.compare(Image.byteToDouble((byte)i), storage.get(i)));
+        }
+    }
+
+    @Test
+    public void floatKeepsUnroundedSamples(){
+        PixelStorage storage = SampleType.FLOAT.allocate(1);
+        storage.set(0, -1.2345);
+        assertEquals(-1.2345, storage.get(0), 1e-6);
+    }
+
+    @Test
+    public void narrowImagesMatchDouble(){
+        Image d = new Image(16, 16, Encoding.GS, true);
+        Image b = new Image(16, 16, Encoding.GS, SampleType.BYTE, true);
+        for(int x = 0; x < 16; x++)
+            for(int y = 0; y < 16; y++){
+                d.setComponent(x, y, 0, (x*16 + y)/255.0);
+                b.setComponent(x, y, 0, (x*16 + y)/255.0);
+            }
+        Image dAns = d.negative().sobel(), bAns = b.negative().sobel();
+        assertEquals(SampleType.BYTE, bAns.getSampleType());
+        for(int x = 0; x < 16; x++)
+            for(int y = 0; y < 16; y++)
+                assertEquals(dAns.getComponent(x, y, 0), bAns.getComponent(x, y, 0), Image.U);
+    }
+
+}
@@ -0,0 +1,51 @@
+package formats;
+
+import formats.storage.PixelStorage;
+import formats.storage.StoragePool;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StoragePoolTest {
+
+    @Test
+    public void borrowedStoragesAreCleared(){
+        StoragePool pool = new StoragePool(StoragePool.DEFAULT_CAPACITY);
+        PixelStorage storage = pool.borrow(SampleType.FLOAT, 16);
+        storage.set(3, 0.5);
+        pool.release(storage);
+        pool.release(storage);
+        assertSame(storage, pool.borrow(SampleType.FLOAT, 16));
+        assertNotSame(storage, pool.borrow(SampleType.FLOAT, 16));
+        assertEquals(0, Double.compare(0, storage.get(3)));
+        assertEquals(1, pool.getHits());
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    @SuppressWarnings("try")
+    public void scopesReleaseWhatIsNotKept(){
+        StoragePool pool = new StoragePool(StoragePool.DEFAULT_CAPACITY);
+        PixelStorage kept, released;
+        try(StoragePool.Scope scope = pool.open()){
+            kept = pool.borrow(SampleType.BYTE, 8);
+            released = pool.borrow(SampleType.BYTE, 8);
+            pool.keep(kept);
+        }
+        assertSame(released, pool.borrow(SampleType.BYTE, 8));
+        assertNotSame(kept, pool.borrow(SampleType.BYTE, 8));
+    }
+
+    @Test
+    public void temporariesAreReused(){
+        Image image = new Image(20, 20, Encoding.GS, true);
+        image.setComponent(10, 10, 0, 1);
+        Image first = image.harris(0.04, 0, 1);
+        long hits = StoragePool.shared().getHits();
+        Image second = image.harris(0.04, 0, 1);
+        assertTrue(StoragePool.shared().getHits() > hits);
+        for(int x = 0; x < 20; x++)
+            for(int y = 0; y < 20; y++)
+                assertEquals(0, Double.compare(first.getComponent(x, y, 0), second.getComponent(x, y, 0)));
+    }
+}
@@ -0,0 +1,106 @@
+package formats;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TiledImageTest {
+
+    private static final int WIDTH = 50, HEIGHT = 37;
+
+    private Image image;
+    private TiledImage tiled;
+
+    @Before
+    public void init(){
+        image = new Image(WIDTH, HEIGHT, Encoding.RGB, true);
+        tiled = new TiledImage(WIDTH, HEIGHT, Encoding.RGB, SampleType.DOUBLE, 8, 9);
+        for(int x = 0; x < WIDTH; x++)
+            for(int y = 0; y < HEIGHT; y++)
+                for(int c = 0; c < 3; c++){
+                    double v = ((x*13 + y*7 + c*31) % 256)/255.0;
+                    image.setComponent(x, y, c, v);
+                    tiled.setComponent(x, y, c, v);
+                }
+    }
+
+    private static void assertSameImage(Image expected, Image actual){
+        assertSameImage(expected, actual, 1e-12);
+    }
+
+    private static void assertSameImage(Image expected, Image actual, double delta){
+        assertEquals(expected.getEncoding(), actual.getEncoding());
+        for(int x = 0; x < WIDTH; x++)
+            for(int y = 0; y < HEIGHT; y++)
+                for(int c = 0; c < expected.getEncoding().getBands(); c++)
+                    assertEquals(expected.getComponent(x, y, c), actual.getComponent(x, y, c), delta);
+    }
+
+    @Test
+    public void spilledTilesAreKept(){
+        assertSameImage(image, tiled);
+    }
+
+    @Test
+    public void pointOperations(){
+        assertArrayEquals(image.histogram(1), tiled.histogram(1), 0);
+        assertSameImage(image.negative().equalize(), tiled.negative().equalize());
+        assertSameImage(image.gammaCorrection(0.5), tiled.gammaCorrection(0.5));
+    }
+
+    @Test
+    public void convolutions(){
+        Image gauss = tiled.gaussFilter(5, 1);
+        assertTrue(gauss instanceof TiledImage);
+        assertSameImage(image.gaussFilter(5, 1), gauss);
+        assertSameImage(image.sobel(), tiled.sobel());
+        assertSameImage(image.medianFilter(3), tiled.medianFilter(3));
+        assertSameImage(image.gaussFilter(2.5), tiled.gaussFilter(2.5));
+        assertSameImage(image.canny(0.2, 0.5, 1.5), tiled.canny(0.2, 0.5, 1.5));
+    }
+
+    @Test
+    public void neighbourhoodsPastTheTileCache(){
+        assertTrue(((WIDTH + 7)/8)*((HEIGHT + 7)/8) > tiled.getCachedTiles());
+        assertSameImage(image.medianFilter(5), tiled.medianFilter(5));
+        assertSameImage(image.weightedMedianFilter(), tiled.weightedMedianFilter());
+        assertSameImage(image.percentileFilter(7, 0.3), tiled.percentileFilter(7, 0.3));
+        assertSameImage(image.trimmedMeanFilter(3, 0.2), tiled.trimmedMeanFilter(3, 0.2));
+        assertSameImage(image.bilateralFilter(5, 2, 30, BorderMode.REFLECT), tiled.bilateralFilter(5, 2, 30, BorderMode.REFLECT));
+        assertSameImage(image.canny(0.2, 0.5), tiled.canny(0.2, 0.5));
+        // Tiles add to the cells in another order than rows, so sums may differ in their last bits
+        assertSameImage(image.bilateralGridFilter(3, 0.2), tiled.bilateralGridFilter(3, 0.2), Image.U);
+        // Tiled images sum the boxes per tile rather than build the integral image
+        assertSameImage(image.meanFilter(7), tiled.meanFilter(7));
+        assertSameImage(image.meanFilter(61), tiled.meanFilter(61));
+        double[][] mask = new double[11][11];
+        for(int a = 0; a < 11; a++)
+            for(int b = 0; b < 11; b++)
+                mask[a][b] = (a*7 + b*3) % 5 - 2;
+        // Tiled images convolve large masks directly rather than through the Fourier transform
+        assertSameImage(image.genericConvolution(mask, BorderMode.CLAMP), tiled.genericConvolution(mask, BorderMode.CLAMP), Image.U);
+    }
+
+    @Test
+    public void recursiveGaussPastTheTileCache(){
+        TiledImage small = new TiledImage(WIDTH, HEIGHT, Encoding.RGB, SampleType.DOUBLE, 4, 9);
+        small.forEachPixel((x, y) -> {
+            for(int c = 0; c < 3; c++)
+                small.setComponent(x, y, c, image.getComponent(x, y, c));
+        });
+        // Neither a row nor a column of tiles fits in the cache
+        assertTrue((WIDTH + 3)/4 > small.getCachedTiles() && (HEIGHT + 3)/4 > small.getCachedTiles());
+        assertSameImage(image.gaussFilter(2.5), small.gaussFilter(2.5));
+        assertSameImage(image.gaussFilter(11, 1.5), small.gaussFilter(11, 1.5));
+        assertSameImage(image.canny(0.2, 0.5, 1.5), small.canny(0.2, 0.5, 1.5));
+    }
+
+    @Test
+    public void diffusion(){
+        for(BorderMode border : BorderMode.values())
+            assertSameImage(image.diffusion(6, 0.1, Image.DiffusionBorderDetector.LECLERC, border),
+                    tiled.diffusion(6, 0.1, Image.DiffusionBorderDetector.LECLERC, border));
+    }
+
+}